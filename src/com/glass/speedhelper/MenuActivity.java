@@ -9,19 +9,48 @@ import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.speech.RecognizerIntent;
-import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 
 import com.glass.speedhelper.gui.SpeedView;
 import com.glass.speedhelper.services.SpeedService;
+import com.glass.speedhelper.voice.MaxSpeedRecognizer;
+import com.glass.speedhelper.voice.SpeedCommandParser;
+import com.glass.speedhelper.voice.SpeedCommandParser.SpeedCommand;
 
 public class MenuActivity extends Activity {
 	
 	private static final int SPEECH_REQUEST = 0;
 
+    /** The number of hypotheses requested from the recognizer activity. */
+    private static final int MAX_SPEECH_RESULTS = 5;
+
 	private SpeedService.SpeedBinder mSpeedService;
     private boolean mResumed;
+    private boolean mBound;
+
+    /** True while the activity waits for a spoken speed limit after its menu closed. */
+    private boolean mListening;
+    private MaxSpeedRecognizer mRecognizer;
+
+    /** True once a spoken speed limit was applied that has not been read back yet. */
+    private boolean mMaxSpeedChanged;
+
+    private final MaxSpeedRecognizer.Callback mRecognizerCallback =
+            new MaxSpeedRecognizer.Callback() {
+        @Override
+        public void onMaxSpeed(SpeedCommand command) {
+            setMaxSpeed(command);
+        }
+
+        @Override
+        public void onFinished() {
+            mRecognizer = null;
+            // Only read back now, since the open microphone would hear it as more speech.
+            readBackMaxSpeed();
+            close();
+        }
+    };
 
     private ServiceConnection mConnection = new ServiceConnection() {
         @Override
@@ -41,7 +70,7 @@ public class MenuActivity extends Activity {
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        bindService(new Intent(this, SpeedService.class), mConnection, 0);
+        mBound = bindService(new Intent(this, SpeedService.class), mConnection, 0);
     }
 
     @Override
@@ -70,6 +99,14 @@ public class MenuActivity extends Activity {
         return true;
     }
 
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        menu.findItem(R.id.record_trips).setTitle(
+                mSpeedService.getSpeedService().isRecordingTrips()
+                        ? R.string.stop_recording_trips : R.string.record_trips);
+        return super.onPrepareOptionsMenu(menu);
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
@@ -85,38 +122,114 @@ public class MenuActivity extends Activity {
         case R.id.set_max_speed:
         	displaySpeechRecognizer();
         	return true;
+        case R.id.timing:
+            mSpeedService.getSpeedService().toggleTimingMode();
+            return true;
+        case R.id.record_trips:
+            mSpeedService.getSpeedService().toggleTripRecording();
+            return true;
+        case R.id.export_trips:
+            mSpeedService.getSpeedService().exportTrips();
+            return true;
         default:
             return super.onOptionsItemSelected(item);
         }
     }
     
+    /**
+     * Listens for a speed limit. The recognizer service is used when available, since its partial
+     * results let the limit take effect before the recognizer finishes; otherwise the recognizer
+     * activity is started and its final results are parsed.
+     */
     private void displaySpeechRecognizer() {
-        Intent intent = new Intent(RecognizerIntent.ACTION_RECOGNIZE_SPEECH);
-        startActivityForResult(intent, SPEECH_REQUEST);
+        mListening = true;
+        if (MaxSpeedRecognizer.isAvailable(this)) {
+            mRecognizer = new MaxSpeedRecognizer(this, mRecognizerCallback);
+            mRecognizer.start();
+        } else {
+            Intent intent = new Intent(RecognizerIntent.ACTION_RECOGNIZE_SPEECH);
+            intent.putExtra(RecognizerIntent.EXTRA_LANGUAGE_MODEL,
+                    RecognizerIntent.LANGUAGE_MODEL_FREE_FORM);
+            intent.putExtra(RecognizerIntent.EXTRA_MAX_RESULTS, MAX_SPEECH_RESULTS);
+            startActivityForResult(intent, SPEECH_REQUEST);
+        }
     }
     
     @Override
     protected void onActivityResult(int requestCode, int resultCode,
             Intent data) {
-        if (requestCode == SPEECH_REQUEST && resultCode == RESULT_OK) {
-            List<String> results = data.getStringArrayListExtra(
-                    RecognizerIntent.EXTRA_RESULTS);
-            String spokenText = results.get(0);
-            // Do something with spokenText.
-            Log.d("Spoken Text: ",spokenText);
+        if (requestCode == SPEECH_REQUEST) {
+            if (resultCode == RESULT_OK && data != null) {
+                List<String> results = data.getStringArrayListExtra(
+                        RecognizerIntent.EXTRA_RESULTS);
+                SpeedCommand command = SpeedCommandParser.parseBest(results);
+                if (command != null) {
+                    setMaxSpeed(command);
+                }
+            }
+            readBackMaxSpeed();
+            close();
         }
         super.onActivityResult(requestCode, resultCode, data);
     }
 
+    /**
+     * Applies a spoken speed limit. A limit spoken without a unit is taken to be in the unit
+     * currently displayed.
+     */
+    private void setMaxSpeed(SpeedCommand command) {
+        if (mSpeedService == null) {
+            return;
+        }
+
+        SpeedService service = mSpeedService.getSpeedService();
+        int uom = command.uom != SpeedCommandParser.UNIT_UNSPECIFIED
+                ? command.uom : service.getUom();
+        service.setMaxSpeed(command.value, uom);
+        mMaxSpeedChanged = true;
+    }
+
+    private void readBackMaxSpeed() {
+        if (mMaxSpeedChanged && mSpeedService != null) {
+            mMaxSpeedChanged = false;
+            mSpeedService.readMaxSpeed();
+        }
+    }
+
     @Override
     public void onOptionsMenuClosed(Menu menu) {
         super.onOptionsMenuClosed(menu);
 
-        unbindService(mConnection);
+        // We must finish from this method to ensure that the activity ends either when an item is
+        // selected from the menu or when the menu is dismissed by swiping down, unless the item
+        // started listening for a speed limit.
+        if (!mListening) {
+            close();
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        // Dismissing the activity while it listens ends here without going through close().
+        if (mRecognizer != null) {
+            mRecognizer.destroy();
+            mRecognizer = null;
+        }
+        unbind();
+        super.onDestroy();
+    }
 
-        // We must call finish() from this method to ensure that the activity ends either when an
-        // item is selected from the menu or when the menu is dismissed by swiping down.
+    private void close() {
+        unbind();
         finish();
     }
 
+    private void unbind() {
+        if (mBound) {
+            unbindService(mConnection);
+            mBound = false;
+            mSpeedService = null;
+        }
+    }
+
 }
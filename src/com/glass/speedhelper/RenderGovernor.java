@@ -0,0 +1,224 @@
+package com.glass.speedhelper;
+
+import java.util.concurrent.TimeUnit;
+
+import android.content.Intent;
+import android.os.BatteryManager;
+import android.util.Log;
+
+/**
+ * Chooses the render quality tier of the speed HUD from the measured frame cost, the battery
+ * temperature and the battery level, so that the card backs off before Glass overheats or the
+ * CPU throttles.
+ * <p>
+ * Every input has separate thresholds for stepping down and stepping back up, and a tier must be
+ * held for a while before it is left, so the tier does not flap around a threshold. Each tier
+ * change is logged as a single key=value line under the {@code RenderGovernor} tag so that
+ * thresholds can be tuned from field logs.
+ */
+public class RenderGovernor {
+
+    private static final String TAG = RenderGovernor.class.getSimpleName();
+
+    /** Full frame rate with smoothly animated digits. */
+    public static final int TIER_FULL = 0;
+    /** Reduced frame rate with smoothly animated digits. */
+    public static final int TIER_REDUCED = 1;
+    /** Minimal frame rate with static text. */
+    public static final int TIER_MINIMAL = 2;
+
+    private static final String[] TIER_NAMES = { "full", "reduced", "minimal" };
+
+    /** The refresh rate, in frames per second, of each tier. */
+    private static final int[] TIER_FPS = { 45, 15, 2 };
+
+    /**
+     * Battery temperatures, in degrees Celsius, at or above which {@link #TIER_REDUCED} and
+     * {@link #TIER_MINIMAL} are forced.
+     */
+    private static final float[] HOT_CELSIUS = { 42f, 47f };
+
+    /** How far, in degrees Celsius, the battery must cool below a threshold to lift it. */
+    private static final float TEMPERATURE_HYSTERESIS = 3f;
+
+    /**
+     * Battery levels, in percent, at or below which {@link #TIER_REDUCED} and
+     * {@link #TIER_MINIMAL} are forced while not charging.
+     */
+    private static final int[] LOW_BATTERY_PERCENT = { 20, 10 };
+
+    /** How far, in percent, the battery must recover above a threshold to lift it. */
+    private static final int BATTERY_HYSTERESIS = 5;
+
+    /** The fraction of the frame budget above which the frame cost forces a lower tier. */
+    private static final float OVERLOAD_FRACTION = 0.8f;
+
+    /**
+     * The fraction of the next higher tier's frame budget below which the frame cost allows that
+     * tier again.
+     */
+    private static final float UNDERLOAD_FRACTION = 0.4f;
+
+    /** The weight of the latest frame in the moving average of the frame cost. */
+    private static final float FRAME_COST_SMOOTHING = 0.05f;
+
+    /** The minimum time a tier is held before stepping down. */
+    private static final long DOWNGRADE_DWELL_MILLIS = TimeUnit.SECONDS.toMillis(2);
+
+    /** The minimum time a tier is held before stepping back up. */
+    private static final long UPGRADE_DWELL_MILLIS = TimeUnit.SECONDS.toMillis(20);
+
+    private int mTier = TIER_FULL;
+    private long mTierSinceMillis;
+    private float mFrameCostMillis;
+
+    private int mThermalCap = TIER_FULL;
+    private int mBatteryCap = TIER_FULL;
+
+    private volatile float mTemperatureCelsius = Float.NaN;
+    private volatile int mBatteryPercent = -1;
+    private volatile boolean mCharging;
+
+    /**
+     * Updates the battery readings from an {@link Intent#ACTION_BATTERY_CHANGED} broadcast. This
+     * may be called from any thread.
+     */
+    public void onBatteryChanged(Intent intent) {
+        int temperature = intent.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, Integer.MIN_VALUE);
+        if (temperature != Integer.MIN_VALUE) {
+            // Reported in tenths of a degree Celsius.
+            mTemperatureCelsius = temperature / 10f;
+        }
+
+        int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        if (level >= 0 && scale > 0) {
+            mBatteryPercent = 100 * level / scale;
+        }
+
+        int plugged = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0);
+        mCharging = plugged != 0;
+    }
+
+    /**
+     * Records the cost of a frame and re-evaluates the tier. This must be called from the render
+     * thread after every frame.
+     *
+     * @param frameCostMillis the time spent drawing the frame
+     * @param nowMillis the current time, on the same clock as previous calls
+     * @return true if the tier changed
+     */
+    public boolean onFrame(long frameCostMillis, long nowMillis) {
+        if (mTierSinceMillis == 0) {
+            mTierSinceMillis = nowMillis;
+            mFrameCostMillis = frameCostMillis;
+        } else {
+            mFrameCostMillis += FRAME_COST_SMOOTHING * (frameCostMillis - mFrameCostMillis);
+        }
+
+        updateThermalCap();
+        updateBatteryCap();
+
+        int loadTier = mTier;
+        if (mFrameCostMillis > OVERLOAD_FRACTION * getFrameTimeMillis(mTier)) {
+            loadTier = Math.min(mTier + 1, TIER_MINIMAL);
+        } else if (mTier > TIER_FULL
+                && mFrameCostMillis < UNDERLOAD_FRACTION * getFrameTimeMillis(mTier - 1)) {
+            loadTier = mTier - 1;
+        }
+
+        int target = Math.max(loadTier, Math.max(mThermalCap, mBatteryCap));
+        long held = nowMillis - mTierSinceMillis;
+        if (target > mTier && held >= DOWNGRADE_DWELL_MILLIS) {
+            setTier(target, nowMillis);
+            return true;
+        } else if (target < mTier && held >= UPGRADE_DWELL_MILLIS) {
+            // Step back up one tier at a time.
+            setTier(mTier - 1, nowMillis);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the current tier, one of {@link #TIER_FULL}, {@link #TIER_REDUCED} or
+     * {@link #TIER_MINIMAL}.
+     */
+    public int getTier() {
+        return mTier;
+    }
+
+    /**
+     * Returns the duration, in milliseconds, of one frame at the current tier.
+     */
+    public long getFrameTimeMillis() {
+        return getFrameTimeMillis(mTier);
+    }
+
+    private static long getFrameTimeMillis(int tier) {
+        return TimeUnit.SECONDS.toMillis(1) / TIER_FPS[tier];
+    }
+
+    private void updateThermalCap() {
+        float temperature = mTemperatureCelsius;
+        if (Float.isNaN(temperature)) {
+            return;
+        }
+
+        int cap = TIER_FULL;
+        for (int i = 0; i < HOT_CELSIUS.length; i++) {
+            float threshold = HOT_CELSIUS[i];
+            if (mThermalCap > i) {
+                threshold -= TEMPERATURE_HYSTERESIS;
+            }
+            if (temperature >= threshold) {
+                cap = i + 1;
+            }
+        }
+        mThermalCap = cap;
+    }
+
+    private void updateBatteryCap() {
+        int level = mBatteryPercent;
+        if (level < 0 || mCharging) {
+            mBatteryCap = TIER_FULL;
+            return;
+        }
+
+        int cap = TIER_FULL;
+        for (int i = 0; i < LOW_BATTERY_PERCENT.length; i++) {
+            int threshold = LOW_BATTERY_PERCENT[i];
+            if (mBatteryCap > i) {
+                threshold += BATTERY_HYSTERESIS;
+            }
+            if (level <= threshold) {
+                cap = i + 1;
+            }
+        }
+        mBatteryCap = cap;
+    }
+
+    private void setTier(int tier, long nowMillis) {
+        String reason;
+        if (tier < mTier) {
+            reason = "recovered";
+        } else if (mThermalCap >= tier) {
+            reason = "thermal";
+        } else if (mBatteryCap >= tier) {
+            reason = "battery";
+        } else {
+            reason = "frame_cost";
+        }
+
+        Log.i(TAG, "tier_change from=" + TIER_NAMES[mTier] + " to=" + TIER_NAMES[tier]
+                + " reason=" + reason
+                + " held_ms=" + (nowMillis - mTierSinceMillis)
+                + " frame_cost_ms=" + mFrameCostMillis
+                + " battery_temp_c=" + mTemperatureCelsius
+                + " battery_pct=" + mBatteryPercent
+                + " charging=" + mCharging);
+
+        mTier = tier;
+        mTierSinceMillis = nowMillis;
+    }
+}
@@ -1,8 +1,9 @@
 package com.glass.speedhelper;
 
-import java.util.concurrent.TimeUnit;
-
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.graphics.Canvas;
 import android.os.SystemClock;
 import android.util.Log;
@@ -13,6 +14,7 @@ import android.widget.FrameLayout;
 
 import com.glass.speedhelper.gui.SpeedView;
 import com.glass.speedhelper.managers.StateLocationManager;
+import com.glass.speedhelper.timing.AccelerationTimer;
 
 /**
  * The surface callback that provides the rendering logic for the speed live card. This callback
@@ -23,20 +25,18 @@ public class SpeedRenderer implements SurfaceHolder.Callback {
 
     private static final String TAG = SpeedRenderer.class.getSimpleName();
 
-    /** The refresh rate, in frames per second, of the compass. */
-    private static final int REFRESH_RATE_FPS = 45;
-
-    /** The duration, in milliseconds, of one frame. */
-    private static final long FRAME_TIME_MILLIS = TimeUnit.SECONDS.toMillis(1) / REFRESH_RATE_FPS;
-
     private SurfaceHolder mHolder;
     private RenderThread mRenderThread;
     private int mSurfaceWidth;
     private int mSurfaceHeight;
 
+    private final Context mContext;
     private final FrameLayout mLayout;
     private final SpeedView mView;
     private final StateLocationManager mStateLocationManager;
+    private final RenderGovernor mGovernor = new RenderGovernor();
+
+    private AccelerationTimer mTimer;
 
     private final StateLocationManager.OnChangedListener mSpeedListener =
             new StateLocationManager.OnChangedListener() {
@@ -45,6 +45,19 @@ public class SpeedRenderer implements SurfaceHolder.Callback {
         public void onLocationChanged(StateLocationManager stateLocationManager) {
             mView.setSpeed(stateLocationManager.getLocation().getSpeed());
         }
+
+        @Override
+        public void onOrientationChanged(StateLocationManager stateLocationManager) {
+            mView.setHeading(stateLocationManager.getHeading());
+        }
+    };
+
+    private final BroadcastReceiver mBatteryReceiver = new BroadcastReceiver() {
+
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            mGovernor.onBatteryChanged(intent);
+        }
     };
 
     /**
@@ -52,6 +65,8 @@ public class SpeedRenderer implements SurfaceHolder.Callback {
      * and orientation manager.
      */
     public SpeedRenderer(Context context, StateLocationManager stateLocationManager) {
+        mContext = context;
+
         LayoutInflater inflater = LayoutInflater.from(context);
         mLayout = (FrameLayout) inflater.inflate(R.layout.speed_content_lay, null);
         mLayout.setWillNotDraw(false);
@@ -77,6 +92,13 @@ public class SpeedRenderer implements SurfaceHolder.Callback {
         mStateLocationManager.addOnChangedListener(mSpeedListener);
         mStateLocationManager.start();
 
+        // ACTION_BATTERY_CHANGED is sticky, so the current battery state is available right away.
+        Intent battery = mContext.registerReceiver(mBatteryReceiver,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery != null) {
+            mGovernor.onBatteryChanged(battery);
+        }
+
         mRenderThread = new RenderThread();
         mRenderThread.start();
     }
@@ -85,6 +107,8 @@ public class SpeedRenderer implements SurfaceHolder.Callback {
     public void surfaceDestroyed(SurfaceHolder holder) {
         mRenderThread.quit();
 
+        mContext.unregisterReceiver(mBatteryReceiver);
+
         mStateLocationManager.removeOnChangedListener(mSpeedListener);
         mStateLocationManager.stop();
     }
@@ -119,6 +143,10 @@ public class SpeedRenderer implements SurfaceHolder.Callback {
         }
 
         if (canvas != null) {
+            mView.updateText();
+            if (mLayout.isLayoutRequested()) {
+                doLayout();
+            }
             mLayout.draw(canvas);
 
             try {
@@ -137,6 +165,24 @@ public class SpeedRenderer implements SurfaceHolder.Callback {
         return mView.getUom();
     }
 
+    /**
+     * Enters or leaves the acceleration timing mode. While it is on, speed is sampled at the
+     * highest rate available and the splits are shown on the card.
+     */
+    public void setTimingMode(boolean enabled) {
+        if (enabled == isTimingMode()) {
+            return;
+        }
+
+        mTimer = enabled ? new AccelerationTimer() : null;
+        mStateLocationManager.setOnSpeedSampleListener(mTimer);
+        mView.setAccelerationTimer(mTimer);
+    }
+
+    public boolean isTimingMode() {
+        return mTimer != null;
+    }
+
     /**
      * Redraws the s[eed HUD in the background.
      */
@@ -173,7 +219,11 @@ public class SpeedRenderer implements SurfaceHolder.Callback {
                 repaint();
                 long frameLength = SystemClock.elapsedRealtime() - frameStart;
 
-                long sleepTime = FRAME_TIME_MILLIS - frameLength;
+                if (mGovernor.onFrame(frameLength, frameStart)) {
+                    mView.setSmoothSpeed(mGovernor.getTier() != RenderGovernor.TIER_MINIMAL);
+                }
+
+                long sleepTime = mGovernor.getFrameTimeMillis() - frameLength;
                 if (sleepTime > 0) {
                     SystemClock.sleep(sleepTime);
                 }
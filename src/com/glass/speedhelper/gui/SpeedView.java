@@ -5,21 +5,26 @@ import java.text.DecimalFormat;
 import java.text.NumberFormat;
 
 import android.content.Context;
-import android.graphics.Canvas;
 import android.graphics.Typeface;
+import android.os.SystemClock;
 import android.util.AttributeSet;
+import android.util.TypedValue;
 import android.view.LayoutInflater;
-import android.view.View;
+import android.widget.FrameLayout;
 import android.widget.TextView;
 
 import com.glass.speedhelper.R;
 import com.glass.speedhelper.managers.StateLocationManager;
+import com.glass.speedhelper.timing.AccelerationTimer;
 
 /**
- * Draws a stylized compass, with text labels at the cardinal and ordinal directions, and tick
- * marks at the half-winds. The red "needles" in the display mark the current heading.
+ * Shows the current speed in the selected unit of measurement, with the current heading as a
+ * compass point and degrees next to it.
+ * <p>
+ * The card is drawn off the UI thread, so the text is not refreshed on its own: the renderer calls
+ * {@link #updateText()} before every frame.
  */
-public class SpeedView extends View {
+public class SpeedView extends FrameLayout {
     
     public static final int KMH = 0;
     public static final int MPH = 1;
@@ -28,14 +33,42 @@ public class SpeedView extends View {
     private static final double KMH_IN_MPS = 0.277777778;
     private static final double MPH_IN_MPS = 0.44704;
 
+    /**
+     * The time constant, in milliseconds, with which the shown speed follows the measured one.
+     * At the full frame rate this closes about 15% of the gap every frame.
+     */
+    private static final float SPEED_SMOOTHING_TIME_CONSTANT_MILLIS = 125f;
+
+    /** The compass points shown for the heading, one per 45 degrees starting at north. */
+    private static final String[] COMPASS_POINTS = { "N", "NE", "E", "SE", "S", "SW", "W", "NW" };
+
     private StateLocationManager mLocation;
+    private AccelerationTimer mTimer;
 
     private final Typeface mSpeedTypeface;
     private final NumberFormat mDistanceFormat;
     private int uom = DEFAULT;
+    private boolean mSmoothSpeed = true;
+    private float mShownSpeed = Float.NaN;
+    private long mShownSpeedMillis;
+    /** Written by the sensor thread, read by the render thread. */
+    private volatile float mHeading = Float.NaN;
+    private int mShownHeading = -1;
+    private boolean mShowingSplits;
+
+    /*
+     * The splits text is built in place and only when what it shows changes, since it is refreshed
+     * every frame while the timer runs.
+     */
+    private final char[] mSplitsText = new char[96];
+    private final long[] mShownSpeedSplits = new long[AccelerationTimer.SPEED_THRESHOLDS.length];
+    private long mShownDistanceSplit;
+    private long mShownElapsedCentis = -1;
     
     private TextView mSpeed;
     private TextView mUom;
+    private TextView mHeadingText;
+    private TextView mSplits;
 
     public SpeedView(Context context) {
         this(context, null, 0);
@@ -48,16 +81,20 @@ public class SpeedView extends View {
     public SpeedView(Context context, AttributeSet attrs, int defStyle) {
         super(context, attrs, defStyle);
         
-        LayoutInflater.from(context).inflate(R.layout.speed_view_lay, null, false);
+        LayoutInflater.from(context).inflate(R.layout.speed_view_lay, this, true);
 
         mSpeedTypeface = Typeface.createFromFile(new File("/system/glass_fonts",
                                                     "Roboto-Thin.ttf"));
         
         mSpeed = (TextView) findViewById(R.id.tvSpeed);
         mUom = (TextView) findViewById(R.id.tvUom);
+        mHeadingText = (TextView) findViewById(R.id.tvHeading);
+        mSplits = (TextView) findViewById(R.id.tvSplits);
         
         mSpeed.setTypeface(mSpeedTypeface);
         mUom.setTypeface(mSpeedTypeface);
+        mHeadingText.setTypeface(mSpeedTypeface);
+        mSplits.setTypeface(mSpeedTypeface);
         
         mDistanceFormat = NumberFormat.getNumberInstance();
         mDistanceFormat.setMinimumFractionDigits(0);
@@ -89,6 +126,37 @@ public class SpeedView extends View {
         invalidate();
     }
     
+    /**
+     * Sets whether the shown speed counts smoothly towards a new value over several frames, or
+     * jumps to it. Smoothing only looks right at a high frame rate.
+     *
+     * @param smooth true to animate the speed digits
+     */
+    public void setSmoothSpeed(boolean smooth) {
+        mSmoothSpeed = smooth;
+    }
+
+    /**
+     * Sets the current heading. This is called on the sensor thread at sensor rate, so it only
+     * records the value; the renderer picks it up on its next frame.
+     *
+     * @param heading the current heading, in degrees east of true north
+     */
+    public void setHeading(float heading) {
+        mHeading = heading;
+    }
+
+    /**
+     * Sets the acceleration timer whose splits are shown on the HUD, or {@code null} to leave
+     * timing mode.
+     *
+     * @param timer the timer to show
+     */
+    public void setAccelerationTimer(AccelerationTimer timer) {
+        mTimer = timer;
+        invalidate();
+    }
+
     /**
      * Set the unit of measurement.
      * 
@@ -108,45 +176,203 @@ public class SpeedView extends View {
         return uom;
     }
 
-    @Override
-    protected void onDraw(Canvas canvas) {
-        super.onDraw(canvas);
+    /**
+     * Converts a speed in m/s to the given unit of measurement.
+     *
+     * @param speed the speed in m/s
+     * @param uom the unit of measurement to convert to
+     */
+    public static float fromMetersPerSecond(float speed, int uom) {
+        switch (uom) {
+        case KMH: return (float) (speed / KMH_IN_MPS);
+        case MPH: return (float) (speed / MPH_IN_MPS);
+        default:  return speed;
+        }
+    }
+
+    /**
+     * Converts a speed in the given unit of measurement to m/s.
+     *
+     * @param speed the speed in the given unit
+     * @param uom the unit of measurement to convert from
+     */
+    public static float toMetersPerSecond(float speed, int uom) {
+        switch (uom) {
+        case KMH: return (float) (speed * KMH_IN_MPS);
+        case MPH: return (float) (speed * MPH_IN_MPS);
+        default:  return speed;
+        }
+    }
+
+    /**
+     * Refreshes the text from the latest speed, heading and splits. The text may change size, so
+     * the caller must lay the view out again if a layout was requested.
+     */
+    public void updateText() {
+        // make room for the splits when entering or leaving timing mode
+        layOutForTiming(mTimer != null);
 
         // now the speed
-        drawSpeed(canvas);
+        drawSpeed();
+
+        // and the heading next to it
+        drawHeading();
+
+        // and the acceleration splits, in timing mode
+        drawSplits();
+    }
+
+    /**
+     * Shrinks the speed and swaps the heading for the splits in timing mode, so that the splits
+     * fit beside three digits on the card.
+     */
+    private void layOutForTiming(boolean timing) {
+        if (timing == mShowingSplits) {
+            return;
+        }
+        mShowingSplits = timing;
+
+        mSpeed.setTextSize(TypedValue.COMPLEX_UNIT_PX, getResources().getDimension(
+                timing ? R.dimen.timing_text_size : R.dimen.main_text_size));
+        mHeadingText.setVisibility(timing ? GONE : VISIBLE);
+        mSplits.setVisibility(timing ? VISIBLE : GONE);
     }
 
     /**
      * Draws the speed
-     *
-     * @param canvas the {@link Canvas} upon which to draw
      */
-    private void drawSpeed(Canvas canvas) {
-        
-        int speed = (int) mLocation.getLocation().getSpeed();
+    private void drawSpeed() {
+        if (!mLocation.hasLocation()) {
+            return;
+        }
+
+        float target = mLocation.getLocation().getSpeed();
+        long now = SystemClock.elapsedRealtime();
+        if (mSmoothSpeed && !Float.isNaN(mShownSpeed)) {
+            // Scaled by the frame time, so the animation takes as long at any frame rate.
+            float dt = now - mShownSpeedMillis;
+            float alpha = dt > 0 ? dt / (SPEED_SMOOTHING_TIME_CONSTANT_MILLIS + dt) : 0f;
+            mShownSpeed += alpha * (target - mShownSpeed);
+        } else {
+            mShownSpeed = target;
+        }
+        mShownSpeedMillis = now;
+
+        // Converted before rounding, so the digits move in steps of the shown unit.
+        float speed = fromMetersPerSecond(mShownSpeed, uom);
         String uomStr;
         switch (uom) {
         case KMH:
-            speed /= KMH_IN_MPS;
             uomStr = " km/h";
             break;
         case MPH:
-            speed /= MPH_IN_MPS;
             uomStr = " mph";
             break;
         default:
             uomStr = " m/s";
         }
-        if (speed > 1000) {
-            speed = 999;
+        if (speed > 999f) {
+            speed = 999f;
         }
         
         final DecimalFormat smallNumberFormat = new DecimalFormat("0.0");
         
         String speedStr = speed < 10 ? smallNumberFormat.format(speed)
-                        : Integer.toString(speed);
+                        : Integer.toString(Math.round(speed));
         
         mSpeed.setText(speedStr);
         mUom.setText(uomStr);
     }
+
+    /**
+     * Draws the live acceleration splits in timing mode. The text is only rebuilt when the elapsed
+     * time, to the hundredth of a second shown, or one of the splits changes, and without
+     * allocating.
+     */
+    private void drawSplits() {
+        AccelerationTimer timer = mTimer;
+        if (timer == null) {
+            mShownElapsedCentis = -1;
+            return;
+        }
+
+        long elapsedCentis = toCentis(timer.getElapsedNanos());
+        boolean changed = elapsedCentis != mShownElapsedCentis;
+        for (int i = 0; i < mShownSpeedSplits.length; i++) {
+            long split = timer.getSpeedSplitNanos(i);
+            changed |= split != mShownSpeedSplits[i];
+            mShownSpeedSplits[i] = split;
+        }
+        long distanceSplit = timer.getDistanceSplitNanos();
+        changed |= distanceSplit != mShownDistanceSplit;
+        mShownDistanceSplit = distanceSplit;
+        if (!changed) {
+            return;
+        }
+        mShownElapsedCentis = elapsedCentis;
+
+        char[] text = mSplitsText;
+        int length = appendSeconds(text, 0, elapsedCentis);
+        for (int i = 0; i < mShownSpeedSplits.length; i++) {
+            length = appendSplit(text, length, AccelerationTimer.SPEED_LABELS[i],
+                    mShownSpeedSplits[i]);
+        }
+        length = appendSplit(text, length, AccelerationTimer.DISTANCE_LABEL, mShownDistanceSplit);
+
+        mSplits.setText(text, 0, length);
+    }
+
+    private static int appendSplit(char[] text, int length, String label, long nanos) {
+        text[length++] = '\n';
+        label.getChars(0, label.length(), text, length);
+        length += label.length();
+        text[length++] = ' ';
+        if (nanos == AccelerationTimer.NOT_REACHED) {
+            text[length++] = '-';
+            text[length++] = '-';
+            return length;
+        }
+        return appendSeconds(text, length, toCentis(nanos));
+    }
+
+    /**
+     * Writes a time as seconds with two decimals, such as "12.34s".
+     */
+    private static int appendSeconds(char[] text, int length, long centis) {
+        long seconds = centis / 100;
+        int digits = 1;
+        for (long rest = seconds / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        for (int i = digits - 1; i >= 0; i--) {
+            text[length + i] = (char) ('0' + seconds % 10);
+            seconds /= 10;
+        }
+        length += digits;
+        text[length++] = '.';
+        text[length++] = (char) ('0' + centis / 10 % 10);
+        text[length++] = (char) ('0' + centis % 10);
+        text[length++] = 's';
+        return length;
+    }
+
+    private static long toCentis(long nanos) {
+        return (nanos + 5000000) / 10000000;
+    }
+
+    /**
+     * Draws the heading. The text is only rebuilt when the rounded heading changes.
+     */
+    private void drawHeading() {
+        if (Float.isNaN(mHeading)) {
+            return;
+        }
+
+        int heading = Math.round(mHeading) % 360;
+        if (heading != mShownHeading) {
+            mShownHeading = heading;
+            int point = Math.round(heading / 45f) % COMPASS_POINTS.length;
+            mHeadingText.setText(COMPASS_POINTS[point] + " " + heading + "\u00b0");
+        }
+    }
 }
@@ -0,0 +1,254 @@
+package com.glass.speedhelper.managers;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import android.content.res.Resources;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.speech.tts.TextToSpeech;
+
+import com.glass.speedhelper.R;
+import com.glass.speedhelper.gui.SpeedView;
+
+/**
+ * Speaks the speed alerts. Alerts are stitched together from clips pre-synthesized by a
+ * {@link SpeechClipCache} and written straight to an {@link AudioTrack}, which avoids the delay
+ * of synthesizing every phrase on demand. Until the clips needed for an alert are ready, the alert
+ * is spoken by the text-to-speech engine instead.
+ * <p>
+ * Like {@link TextToSpeech#QUEUE_FLUSH}, every new alert interrupts the one being played.
+ */
+public class AlertSpeaker {
+
+    /** The largest speed, in any unit, that has a pre-synthesized clip. */
+    public static final int MAX_CACHED_SPEED = 300;
+
+    /** The size, in bytes, of the slices written to the audio track between interrupt checks. */
+    private static final int WRITE_SLICE_BYTES = 2048;
+
+    private static final String KEY_SLOW_DOWN = "slow_down";
+    private static final String KEY_SPEED_LIMIT = "speed_limit";
+    private static final String KEY_NO_SPEED_LIMIT = "no_speed_limit";
+    private static final String[] KEY_UNITS = { "unit_kmh", "unit_mph" };
+
+    private final Resources mResources;
+    private final TextToSpeech mSpeech;
+    private final SpeechClipCache mCache;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    /** Incremented by every alert so that the one being played can notice it was interrupted. */
+    private volatile int mGeneration;
+
+    /** Only touched on {@link #mThread}. */
+    private AudioTrack mTrack;
+
+    /**
+     * Creates a speaker that caches its clips under {@code cacheDirectory}.
+     *
+     * @param speech the text-to-speech engine, which may still be initializing
+     */
+    public AlertSpeaker(Resources resources, TextToSpeech speech, File cacheDirectory) {
+        mResources = resources;
+        mSpeech = speech;
+        mCache = new SpeechClipCache(cacheDirectory);
+
+        mThread = new HandlerThread(AlertSpeaker.class.getSimpleName());
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Starts synthesizing the clips for the current locale. This must be called once the
+     * text-to-speech engine is initialized, and again whenever the locale changes. The clip
+     * directory is scanned on the speaker's thread, so this returns right away.
+     */
+    public void prepare() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Locale locale = Locale.getDefault();
+                mSpeech.setLanguage(locale);
+
+                Map<String, String> phrases = new LinkedHashMap<String, String>();
+                phrases.put(KEY_SLOW_DOWN, mResources.getString(R.string.spoken_slow_down));
+                phrases.put(KEY_SPEED_LIMIT, mResources.getString(R.string.spoken_speed_limit));
+                phrases.put(KEY_NO_SPEED_LIMIT,
+                        mResources.getString(R.string.spoken_no_speed_limit));
+                phrases.put(KEY_UNITS[SpeedView.KMH], mResources.getString(R.string.spoken_kmh));
+                phrases.put(KEY_UNITS[SpeedView.MPH], mResources.getString(R.string.spoken_mph));
+                for (int i = 0; i <= MAX_CACHED_SPEED; i++) {
+                    phrases.put(numberKey(i), Integer.toString(i));
+                }
+
+                mCache.prepare(mSpeech, locale, phrases);
+            }
+        });
+    }
+
+    /**
+     * Warns that the speed limit is exceeded, followed by the current speed.
+     */
+    public void speakOverspeed(int speed, int uom) {
+        speak(KEY_SLOW_DOWN, R.string.spoken_slow_down, speed, uom);
+    }
+
+    /**
+     * Reads the speed limit aloud.
+     */
+    public void speakSpeedLimit(int speed, int uom) {
+        speak(KEY_SPEED_LIMIT, R.string.spoken_speed_limit, speed, uom);
+    }
+
+    /**
+     * Says that no speed limit is set.
+     */
+    public void speakNoSpeedLimit() {
+        speak(new String[] { KEY_NO_SPEED_LIMIT },
+                mResources.getString(R.string.spoken_no_speed_limit));
+    }
+
+    /**
+     * Stops playback and releases the audio resources.
+     */
+    public void shutdown() {
+        mGeneration++;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mTrack != null) {
+                    mTrack.release();
+                    mTrack = null;
+                }
+                mThread.quit();
+            }
+        });
+    }
+
+    /**
+     * Speaks a phrase followed by a speed and its unit.
+     */
+    private void speak(String phraseKey, int phraseRes, int speed, int uom) {
+        boolean mph = uom == SpeedView.MPH;
+        String unitKey = KEY_UNITS[mph ? SpeedView.MPH : SpeedView.KMH];
+        String text = mResources.getString(phraseRes) + " " + speed + " "
+                + mResources.getString(mph ? R.string.spoken_mph : R.string.spoken_kmh);
+
+        if (speed < 0 || speed > MAX_CACHED_SPEED) {
+            speak(null, text);
+        } else {
+            speak(new String[] { phraseKey, numberKey(speed), unitKey }, text);
+        }
+    }
+
+    /**
+     * Plays the clips of {@code keys} back to back, or speaks {@code fallbackText} if any of them
+     * is not available.
+     */
+    private void speak(final String[] keys, final String fallbackText) {
+        final int generation = ++mGeneration;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (generation != mGeneration) {
+                    return;
+                }
+
+                SpeechClipCache.Clip[] clips = keys != null ? loadClips(keys) : null;
+                if (clips == null || !play(clips, generation)) {
+                    mSpeech.speak(fallbackText, TextToSpeech.QUEUE_FLUSH, null);
+                    mCache.onSpeechFlushed();
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the clips of {@code keys}, or {@code null} if any is missing or their formats
+     * differ.
+     */
+    private SpeechClipCache.Clip[] loadClips(String[] keys) {
+        SpeechClipCache.Clip[] clips = new SpeechClipCache.Clip[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            clips[i] = mCache.get(keys[i]);
+            if (clips[i] == null || clips[i].sampleRate != clips[0].sampleRate
+                    || clips[i].channels != clips[0].channels) {
+                return null;
+            }
+        }
+        return clips;
+    }
+
+    /**
+     * Writes the clips back to back to the audio track.
+     *
+     * @return false if no audio track could be created for the clips
+     */
+    private boolean play(SpeechClipCache.Clip[] clips, int generation) {
+        AudioTrack track = obtainTrack(clips[0]);
+        if (track == null) {
+            return false;
+        }
+
+        // Drop whatever is left of the previous alert.
+        track.pause();
+        track.flush();
+        track.play();
+
+        for (SpeechClipCache.Clip clip : clips) {
+            for (int offset = 0; offset < clip.pcm.length; offset += WRITE_SLICE_BYTES) {
+                if (generation != mGeneration) {
+                    track.pause();
+                    track.flush();
+                    return true;
+                }
+                track.write(clip.pcm, offset,
+                        Math.min(WRITE_SLICE_BYTES, clip.pcm.length - offset));
+            }
+        }
+
+        // Plays out the data already written, then stops.
+        track.stop();
+        return true;
+    }
+
+    /**
+     * Returns an audio track for the format of {@code clip}, reusing the current one if it
+     * matches.
+     */
+    private AudioTrack obtainTrack(SpeechClipCache.Clip clip) {
+        int channelConfig = clip.channels == 1
+                ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
+
+        if (mTrack != null && (mTrack.getSampleRate() != clip.sampleRate
+                || mTrack.getChannelConfiguration() != channelConfig)) {
+            mTrack.release();
+            mTrack = null;
+        }
+
+        if (mTrack == null) {
+            int bufferSize = AudioTrack.getMinBufferSize(clip.sampleRate, channelConfig,
+                    AudioFormat.ENCODING_PCM_16BIT);
+            if (bufferSize <= 0) {
+                return null;
+            }
+            mTrack = new AudioTrack(AudioManager.STREAM_MUSIC, clip.sampleRate, channelConfig,
+                    AudioFormat.ENCODING_PCM_16BIT, bufferSize, AudioTrack.MODE_STREAM);
+            if (mTrack.getState() != AudioTrack.STATE_INITIALIZED) {
+                mTrack.release();
+                mTrack = null;
+            }
+        }
+        return mTrack;
+    }
+
+    private static String numberKey(int number) {
+        return "n" + number;
+    }
+}
@@ -0,0 +1,377 @@
+package com.glass.speedhelper.managers;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import android.speech.tts.TextToSpeech;
+import android.speech.tts.UtteranceProgressListener;
+import android.util.Log;
+
+/**
+ * Synthesizes a fixed set of phrases to WAV files in the background and serves them as trimmed
+ * PCM clips, so that alerts can be played without waiting for the text-to-speech engine.
+ * <p>
+ * Clips are kept in one directory per locale; preparing the cache for a new locale deletes the
+ * clips of every other locale. Decoded clips are held in memory in least-recently-used order up to
+ * {@link #MAX_MEMORY_BYTES} and reloaded from disk when needed again.
+ */
+public class SpeechClipCache {
+
+    private static final String TAG = SpeechClipCache.class.getSimpleName();
+
+    /** The upper bound, in bytes, of the PCM data held in memory. */
+    private static final long MAX_MEMORY_BYTES = 4 * 1024 * 1024;
+
+    /** The size of the part of a WAV "fmt " chunk that is read. */
+    private static final int FMT_CHUNK_BYTES = 16;
+
+    /** Samples quieter than this at either end of a clip are trimmed as silence. */
+    private static final int SILENCE_THRESHOLD = 512;
+
+    /** The silence, in milliseconds, kept at each end of a trimmed clip. */
+    private static final int SILENCE_MARGIN_MILLIS = 20;
+
+    private static final String CLIP_EXTENSION = ".wav";
+    private static final String TEMP_EXTENSION = ".tmp";
+
+    /**
+     * A decoded clip of 16 bit little endian PCM audio.
+     */
+    public static final class Clip {
+        public final byte[] pcm;
+        public final int sampleRate;
+        public final int channels;
+
+        Clip(byte[] pcm, int sampleRate, int channels) {
+            this.pcm = pcm;
+            this.sampleRate = sampleRate;
+            this.channels = channels;
+        }
+    }
+
+    private final File mRoot;
+    private final LinkedHashMap<String, Clip> mLoaded =
+            new LinkedHashMap<String, Clip>(16, 0.75f, true /* accessOrder */);
+    private long mLoadedBytes;
+
+    private TextToSpeech mSpeech;
+    private File mDirectory;
+    private Map<String, String> mPhrases;
+    private Iterator<String> mPending;
+    private String mSynthesizing;
+    private int mGeneration;
+
+    /**
+     * Numbers every synthesis request, so that a late callback of a request dropped by a flush is
+     * not mistaken for the result of the request that replaced it.
+     */
+    private int mRequest;
+
+    private final UtteranceProgressListener mProgressListener = new UtteranceProgressListener() {
+        @Override
+        public void onStart(String utteranceId) {
+            // Don't need to do anything here.
+        }
+
+        @Override
+        public void onDone(String utteranceId) {
+            onSynthesized(utteranceId, true);
+        }
+
+        @Override
+        public void onError(String utteranceId) {
+            onSynthesized(utteranceId, false);
+        }
+    };
+
+    /**
+     * Creates a cache that stores its clips under {@code root}.
+     */
+    public SpeechClipCache(File root) {
+        mRoot = root;
+    }
+
+    /**
+     * Starts synthesizing every phrase that is not cached yet for {@code locale}. Clips of other
+     * locales are deleted, since their phrases no longer match what the engine would say. This
+     * lists and deletes files, so it should not be called on the main thread.
+     *
+     * @param speech an initialized text-to-speech engine set to {@code locale}
+     * @param locale the locale the phrases are spoken in
+     * @param phrases the text of each phrase, by key
+     */
+    public synchronized void prepare(TextToSpeech speech, Locale locale,
+            Map<String, String> phrases) {
+        mGeneration++;
+        mSynthesizing = null;
+        mSpeech = speech;
+        mPhrases = phrases;
+        mDirectory = new File(mRoot, locale.toString());
+
+        File[] locales = mRoot.listFiles();
+        if (locales != null) {
+            for (File other : locales) {
+                if (!other.equals(mDirectory)) {
+                    delete(other);
+                }
+            }
+        }
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.w(TAG, "Cannot create speech cache " + mDirectory);
+            mPending = null;
+            return;
+        }
+
+        mLoaded.clear();
+        mLoadedBytes = 0;
+
+        // Drop clips of phrases that are no longer used or whose text has changed.
+        Set<File> expected = new HashSet<File>();
+        List<String> missing = new ArrayList<String>();
+        for (String key : phrases.keySet()) {
+            File clip = clipFile(key);
+            expected.add(clip);
+            if (!clip.isFile()) {
+                missing.add(key);
+            }
+        }
+        File[] clips = mDirectory.listFiles();
+        if (clips != null) {
+            for (File clip : clips) {
+                if (!expected.contains(clip)) {
+                    delete(clip);
+                }
+            }
+        }
+        mPending = missing.iterator();
+        mSpeech.setOnUtteranceProgressListener(mProgressListener);
+        synthesizeNext();
+    }
+
+    /**
+     * Returns the clip for {@code key}, loading it from disk if it is not in memory, or
+     * {@code null} if it has not been synthesized yet. This may read from disk, so it should not
+     * be called on the main thread.
+     */
+    public synchronized Clip get(String key) {
+        Clip clip = mLoaded.get(key);
+        if (clip != null || mPhrases == null || !mPhrases.containsKey(key)) {
+            return clip;
+        }
+
+        File file = clipFile(key);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            clip = readWav(file);
+        } catch (IOException e) {
+            Log.w(TAG, "Dropping unreadable clip " + file, e);
+            file.delete();
+            return null;
+        }
+
+        mLoaded.put(key, clip);
+        mLoadedBytes += clip.pcm.length;
+        Iterator<Clip> eldest = mLoaded.values().iterator();
+        while (mLoadedBytes > MAX_MEMORY_BYTES && eldest.hasNext()) {
+            Clip evicted = eldest.next();
+            if (evicted != clip) {
+                mLoadedBytes -= evicted.pcm.length;
+                eldest.remove();
+            }
+        }
+        return clip;
+    }
+
+    /**
+     * Must be called after the engine's queue was flushed by another utterance, which silently
+     * drops the synthesis in progress. The dropped phrase is requested again.
+     */
+    public synchronized void onSpeechFlushed() {
+        if (mSynthesizing != null) {
+            synthesize(mSynthesizing);
+            synthesizeNext();
+        }
+    }
+
+    private synchronized void onSynthesized(String utteranceId, boolean success) {
+        if (!utteranceId.equals(utteranceId(mSynthesizing))) {
+            // A leftover from before the last prepare(), or from a request that was dropped by a
+            // flush and requested again by onSpeechFlushed().
+            return;
+        }
+
+        String key = mSynthesizing;
+        File temp = new File(mDirectory, key + TEMP_EXTENSION);
+        if (!success || !temp.renameTo(clipFile(key))) {
+            Log.w(TAG, "Cannot synthesize phrase " + key);
+            temp.delete();
+        }
+        mSynthesizing = null;
+        synthesizeNext();
+    }
+
+    private void synthesizeNext() {
+        while (mSynthesizing == null && mPending != null && mPending.hasNext()) {
+            synthesize(mPending.next());
+        }
+    }
+
+    private void synthesize(String key) {
+        mSynthesizing = key;
+        mRequest++;
+
+        HashMap<String, String> params = new HashMap<String, String>();
+        params.put(TextToSpeech.Engine.KEY_PARAM_UTTERANCE_ID, utteranceId(key));
+        File temp = new File(mDirectory, key + TEMP_EXTENSION);
+        if (mSpeech.synthesizeToFile(mPhrases.get(key), params, temp.getPath())
+                != TextToSpeech.SUCCESS) {
+            // Skipped for now; the next prepare() requests it again.
+            Log.w(TAG, "Cannot queue synthesis of phrase " + key);
+            mSynthesizing = null;
+        }
+    }
+
+    /**
+     * Returns the utterance id of the current request for {@code key}, or {@code null} if
+     * {@code key} is {@code null}.
+     */
+    private String utteranceId(String key) {
+        return key != null ? mGeneration + ":" + mRequest + ":" + key : null;
+    }
+
+    /**
+     * Returns the file of a clip. The name includes a hash of the phrase text so that a clip is
+     * synthesized again when its text changes.
+     */
+    private File clipFile(String key) {
+        String name = key + "-" + Integer.toHexString(mPhrases.get(key).hashCode());
+        return new File(mDirectory, name + CLIP_EXTENSION);
+    }
+
+    /**
+     * Reads a 16 bit PCM WAV file and trims the silence at both ends.
+     */
+    private static Clip readWav(File file) throws IOException {
+        byte[] wav = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < wav.length) {
+                int read = in.read(wav, offset, wav.length - offset);
+                if (read < 0) {
+                    throw new IOException("Truncated clip");
+                }
+                offset += read;
+            }
+        } finally {
+            in.close();
+        }
+
+        if (wav.length < 12 || !tag(wav, 0, "RIFF") || !tag(wav, 8, "WAVE")) {
+            throw new IOException("Not a WAV file");
+        }
+
+        int sampleRate = 0;
+        int channels = 0;
+        int bits = 0;
+        int offset = 12;
+        while (offset + 8 <= wav.length) {
+            int size = readInt(wav, offset + 4);
+            int body = offset + 8;
+            if (size < 0 || body + size > wav.length) {
+                // Some engines leave the data size unset; use whatever follows.
+                size = wav.length - body;
+            }
+
+            if (tag(wav, offset, "fmt ")) {
+                if (size < FMT_CHUNK_BYTES) {
+                    throw new IOException("Truncated WAV format chunk");
+                }
+                channels = readShort(wav, body + 2);
+                sampleRate = readInt(wav, body + 4);
+                bits = readShort(wav, body + 14);
+            } else if (tag(wav, offset, "data")) {
+                if (bits != 16 || channels < 1 || sampleRate <= 0) {
+                    throw new IOException("Unsupported WAV format");
+                }
+                return trim(wav, body, body + size, sampleRate, channels);
+            }
+            offset = body + size + (size & 1);
+        }
+        throw new IOException("WAV file has no data");
+    }
+
+    private static Clip trim(byte[] wav, int start, int end, int sampleRate, int channels) {
+        int frameBytes = 2 * channels;
+        int frames = (end - start) / frameBytes;
+
+        int first = 0;
+        while (first < frames && isSilent(wav, start + first * frameBytes, channels)) {
+            first++;
+        }
+        int last = frames;
+        while (last > first && isSilent(wav, start + (last - 1) * frameBytes, channels)) {
+            last--;
+        }
+
+        int margin = sampleRate * SILENCE_MARGIN_MILLIS / 1000;
+        first = Math.max(0, first - margin);
+        last = Math.min(frames, last + margin);
+
+        byte[] pcm = new byte[(last - first) * frameBytes];
+        System.arraycopy(wav, start + first * frameBytes, pcm, 0, pcm.length);
+        return new Clip(pcm, sampleRate, channels);
+    }
+
+    private static boolean isSilent(byte[] wav, int offset, int channels) {
+        for (int i = 0; i < channels; i++) {
+            if (Math.abs(readSample(wav, offset + 2 * i)) >= SILENCE_THRESHOLD) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean tag(byte[] data, int offset, String tag) {
+        for (int i = 0; i < 4; i++) {
+            if (data[offset + i] != tag.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int readShort(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8;
+    }
+
+    private static int readSample(byte[] data, int offset) {
+        return (short) readShort(data, offset);
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return readShort(data, offset) | readShort(data, offset + 2) << 16;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -1,22 +1,31 @@
 package com.glass.speedhelper.managers;
 
-import java.util.LinkedHashSet;
-import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.location.Criteria;
+import android.location.GeomagneticField;
 import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
 
 /**
  * Collects and communicates information about the user's current orientation and location.
+ * <p>
+ * Sensor events are handled on a dedicated thread while tracking, so that the fast rotation
+ * vector stream does not compete with the main thread. Location fixes arrive on the main thread.
  */
 public class StateLocationManager {
 
+    private static final String TAG = StateLocationManager.class.getSimpleName();
+
     /**
      * The minimum distance desired between location notifications.
      */
@@ -33,9 +42,47 @@ public class StateLocationManager {
      */
     private static final long MAX_LOCATION_AGE_MILLIS = TimeUnit.MINUTES.toMillis(30);
 
+    /**
+     * The rate at which rotation vector events are requested. Events are processed without
+     * allocating, so the fastest rate the sensor offers is affordable.
+     */
+    private static final int SENSOR_DELAY = SensorManager.SENSOR_DELAY_FASTEST;
+
+    /**
+     * The time constant, in nanoseconds, of the low-pass filter applied to the heading. Larger
+     * values give a steadier but slower heading.
+     */
+    private static final float HEADING_FILTER_TIME_CONSTANT_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(150);
+
+    /**
+     * The fraction of the gap between the fused speed and a GPS speed that is closed every time a
+     * fix arrives while speed samples are being delivered.
+     */
+    private static final float GPS_SPEED_CORRECTION = 0.3f;
+
+    /**
+     * Below this GPS speed, in m/s, the fused speed is snapped to zero so that accelerometer drift
+     * does not accumulate while stopped.
+     */
+    private static final float STANDSTILL_GPS_SPEED = 0.2f;
+
+    /**
+     * The largest fused speed, in m/s, that is treated as drift when GPS reports a standstill.
+     * Anything faster is taken to be a launch that the lagging GPS has not seen yet.
+     */
+    private static final float MAX_DRIFT_SPEED = 1f;
+
+    /**
+     * Above this GPS speed, in m/s, the GPS bearing is trusted as the direction of travel. Below it
+     * the direction is unknown, so the horizontal velocity is integrated as a vector; the user's
+     * heading cannot stand in for it, since the head turns independently of the vehicle.
+     */
+    private static final float MIN_BEARING_SPEED = 2f;
+
     /**
      * Classes should implement this interface if they want to be notified of changes in the user's
-     * location
+     * location or orientation.
      */
     public interface OnChangedListener {
         /**
@@ -44,14 +91,97 @@ public class StateLocationManager {
          * @param orientationManager the orientation manager that detected the change
          */
         void onLocationChanged(StateLocationManager orientationManager);
+
+        /**
+         * Called when the user's heading changes. This is called on the sensor thread at sensor
+         * rate, so implementations must be cheap, should not allocate and must not touch views
+         * that belong to the main thread.
+         *
+         * @param orientationManager the orientation manager that detected the change
+         */
+        void onOrientationChanged(StateLocationManager orientationManager);
     }
 
+    /**
+     * Classes should implement this interface if they need the user's speed at the highest rate
+     * available rather than at the rate of location fixes.
+     */
+    public interface OnSpeedSampleListener {
+        /**
+         * Called for every speed sample. This is called at sensor rate, so implementations must be
+         * cheap.
+         *
+         * @param timestampNanos the sensor timestamp of the sample, in nanoseconds
+         * @param speed the speed over ground, in m/s
+         */
+        void onSpeedSample(long timestampNanos, float speed);
+    }
+
+    private final SensorManager mSensorManager;
     private final LocationManager mLocationManager;
     private final String mLocationProvider;
-    private final Set<OnChangedListener> mListeners;
+
+    /**
+     * The listeners, replaced by a new array whenever one is added or removed, so that the sensor
+     * thread can walk a snapshot without locking or allocating.
+     */
+    private volatile OnChangedListener[] mListeners = new OnChangedListener[0];
+
+    /*
+     * Scratch buffers reused for every rotation vector event so that the sensor path never
+     * allocates.
+     */
+    private final float[] mRotationVector = new float[4];
+    private final float[] mRotationMatrix = new float[16];
+    private final float[] mRemappedMatrix = new float[16];
+    private final float[] mOrientation = new float[3];
 
     private boolean mTracking;
-    private Location mLocation;
+    private HandlerThread mSensorThread;
+    private Handler mSensorHandler;
+    private volatile Location mLocation;
+    private volatile float mDeclination;
+    private volatile float mHeading;
+    private volatile boolean mHasHeading;
+    private long mLastHeadingTimestamp;
+
+    private OnSpeedSampleListener mSpeedSampleListener;
+
+    /**
+     * Whether speed samples come from the fused speed on the sensor thread, rather than from
+     * location fixes on the main thread. Decided whenever sampling is (re)started.
+     */
+    private boolean mUseFusedSpeed;
+
+    /*
+     * The fused speed state, only touched on the sensor thread.
+     */
+    private OnSpeedSampleListener mFusedSpeedListener;
+    private float mFusedSpeed;
+    private float mFusedVelocityEast;
+    private float mFusedVelocityNorth;
+    private long mLastAccelerationTimestamp;
+    private Location mCorrectedLocation;
+
+    /**
+     * The sensor listener used by the State Location manager.
+     */
+    private SensorEventListener mSensorListener = new SensorEventListener() {
+        @Override
+        public void onAccuracyChanged(Sensor sensor, int accuracy) {
+            // Don't need to do anything here.
+        }
+
+        @Override
+        public void onSensorChanged(SensorEvent event) {
+            if (event.sensor.getType() == Sensor.TYPE_ROTATION_VECTOR) {
+                updateHeading(event);
+                notifyOrientationChanged();
+            } else if (event.sensor.getType() == Sensor.TYPE_LINEAR_ACCELERATION) {
+                updateFusedSpeed(event);
+            }
+        }
+    };
 
     /**
      * The location listener used by the State Location manager.
@@ -60,6 +190,8 @@ public class StateLocationManager {
         @Override
         public void onLocationChanged(Location location) {
             mLocation = location;
+            updateDeclination(location);
+            deliverLocationSpeed(location);
             notifyLocationChanged();
         }
 
@@ -84,8 +216,8 @@ public class StateLocationManager {
      * access system services.
      */
     public StateLocationManager(SensorManager sensorManager, LocationManager locationManager) {
+        mSensorManager = sensorManager;
         mLocationManager = locationManager;
-        mListeners = new LinkedHashSet<OnChangedListener>();
 
         Criteria criteria = new Criteria();
         criteria.setAccuracy(Criteria.ACCURACY_FINE);
@@ -98,16 +230,35 @@ public class StateLocationManager {
     /**
      * Adds a listener that will be notified when the user's location or orientation changes.
      */
-    public void addOnChangedListener(OnChangedListener listener) {
-        mListeners.add(listener);
+    public synchronized void addOnChangedListener(OnChangedListener listener) {
+        OnChangedListener[] listeners = mListeners;
+        for (OnChangedListener existing : listeners) {
+            if (existing == listener) {
+                return;
+            }
+        }
+
+        OnChangedListener[] added = new OnChangedListener[listeners.length + 1];
+        System.arraycopy(listeners, 0, added, 0, listeners.length);
+        added[listeners.length] = listener;
+        mListeners = added;
     }
 
     /**
      * Removes a listener from the list of those that will be notified when the user's location or
      * orientation changes.
      */
-    public void removeOnChangedListener(OnChangedListener listener) {
-        mListeners.remove(listener);
+    public synchronized void removeOnChangedListener(OnChangedListener listener) {
+        OnChangedListener[] listeners = mListeners;
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                OnChangedListener[] removed = new OnChangedListener[listeners.length - 1];
+                System.arraycopy(listeners, 0, removed, 0, i);
+                System.arraycopy(listeners, i + 1, removed, i, listeners.length - i - 1);
+                mListeners = removed;
+                return;
+            }
+        }
     }
 
     /**
@@ -122,16 +273,83 @@ public class StateLocationManager {
                 long locationAge = lastLocation.getTime() - System.currentTimeMillis();
                 if (locationAge < MAX_LOCATION_AGE_MILLIS) {
                     mLocation = lastLocation;
+                    updateDeclination(lastLocation);
                 }
             }
 
-            if (mLocationProvider != null) {
-                mLocationManager.requestLocationUpdates(mLocationProvider,
-                        MILLIS_BETWEEN_LOCATIONS, METERS_BETWEEN_LOCATIONS, mLocationListener,
-                        Looper.getMainLooper());
+            mSensorThread = new HandlerThread(TAG);
+            mSensorThread.start();
+            mSensorHandler = new Handler(mSensorThread.getLooper());
+
+            Sensor rotationVector = mSensorManager.getDefaultSensor(Sensor.TYPE_ROTATION_VECTOR);
+            if (rotationVector != null) {
+                mHasHeading = false;
+                mSensorManager.registerListener(mSensorListener, rotationVector, SENSOR_DELAY,
+                        mSensorHandler);
             }
 
             mTracking = true;
+            requestSpeedUpdates();
+        }
+    }
+
+    /**
+     * Sets the listener that receives speed samples at the highest rate available, or
+     * {@code null} to stop sampling. While a listener is set, location fixes are requested as
+     * often as the provider can deliver them. If the device has both a linear acceleration and a
+     * rotation vector sensor, the speed is filled in between fixes and samples are delivered on the
+     * sensor thread, stamped with the sensor clock; otherwise every fix is delivered on the main
+     * thread, stamped with {@link System#nanoTime()}. A new listener starts from a fresh speed.
+     */
+    public void setOnSpeedSampleListener(OnSpeedSampleListener listener) {
+        mSpeedSampleListener = listener;
+        if (mTracking) {
+            mLocationManager.removeUpdates(mLocationListener);
+            Sensor acceleration =
+                    mSensorManager.getDefaultSensor(Sensor.TYPE_LINEAR_ACCELERATION);
+            if (acceleration != null) {
+                mSensorManager.unregisterListener(mSensorListener, acceleration);
+            }
+            requestSpeedUpdates();
+        }
+    }
+
+    /**
+     * Requests location fixes, and linear acceleration events if speed samples are wanted.
+     */
+    private void requestSpeedUpdates() {
+        final OnSpeedSampleListener listener = mSpeedSampleListener;
+        boolean highRate = listener != null;
+
+        Sensor acceleration = mSensorManager.getDefaultSensor(Sensor.TYPE_LINEAR_ACCELERATION);
+        // Without an orientation the acceleration cannot be projected onto the road.
+        final boolean useFusedSpeed = highRate && acceleration != null
+                && mSensorManager.getDefaultSensor(Sensor.TYPE_ROTATION_VECTOR) != null;
+        mUseFusedSpeed = useFusedSpeed;
+
+        // Queued behind any events left from the previous listener, so that none of them reaches
+        // the new one or carries its speed over.
+        mSensorHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mFusedSpeedListener = useFusedSpeed ? listener : null;
+                mFusedSpeed = 0f;
+                mFusedVelocityEast = 0f;
+                mFusedVelocityNorth = 0f;
+                mLastAccelerationTimestamp = 0;
+                mCorrectedLocation = null;
+            }
+        });
+        if (useFusedSpeed) {
+            mSensorManager.registerListener(mSensorListener, acceleration,
+                    SensorManager.SENSOR_DELAY_FASTEST, mSensorHandler);
+        }
+
+        if (mLocationProvider != null) {
+            mLocationManager.requestLocationUpdates(mLocationProvider,
+                    highRate ? 0 : MILLIS_BETWEEN_LOCATIONS,
+                    highRate ? 0 : METERS_BETWEEN_LOCATIONS, mLocationListener,
+                    Looper.getMainLooper());
         }
     }
 
@@ -141,7 +359,11 @@ public class StateLocationManager {
      */
     public void stop() {
         if (mTracking) {
+            mSensorManager.unregisterListener(mSensorListener);
             mLocationManager.removeUpdates(mLocationListener);
+            mSensorThread.quit();
+            mSensorThread = null;
+            mSensorHandler = null;
             mTracking = false;
         }
     }
@@ -164,6 +386,162 @@ public class StateLocationManager {
         return mLocation;
     }
 
+    /**
+     * Gets a value indicating whether the orientation manager knows the user's current heading.
+     *
+     * @return true if the user's heading is known, otherwise false
+     */
+    public boolean hasHeading() {
+        return mHasHeading;
+    }
+
+    /**
+     * Gets the user's current heading, corrected for magnetic declination when the location is
+     * known.
+     *
+     * @return the user's current heading, in degrees east of true north in [0, 360)
+     */
+    public float getHeading() {
+        return mHeading;
+    }
+
+    /**
+     * Updates the magnetic declination used to turn the magnetic heading into a true heading.
+     */
+    private void updateDeclination(Location location) {
+        GeomagneticField field = new GeomagneticField((float) location.getLatitude(),
+                (float) location.getLongitude(), (float) location.getAltitude(),
+                location.getTime());
+        mDeclination = field.getDeclination();
+    }
+
+    /**
+     * Turns a rotation vector event into a filtered true heading.
+     */
+    private void updateHeading(SensorEvent event) {
+        float[] rotationVector = event.values;
+        if (rotationVector.length > mRotationVector.length) {
+            // Some devices report extra values that getRotationMatrixFromVector rejects.
+            System.arraycopy(rotationVector, 0, mRotationVector, 0, mRotationVector.length);
+            rotationVector = mRotationVector;
+        }
+
+        SensorManager.getRotationMatrixFromVector(mRotationMatrix, rotationVector);
+        // Glass is worn with the screen facing the user, so the device Z axis points forward.
+        SensorManager.remapCoordinateSystem(mRotationMatrix, SensorManager.AXIS_X,
+                SensorManager.AXIS_Z, mRemappedMatrix);
+        SensorManager.getOrientation(mRemappedMatrix, mOrientation);
+
+        float heading = mod((float) Math.toDegrees(mOrientation[0]) + mDeclination, 360f);
+
+        if (!mHasHeading) {
+            mHeading = heading;
+            mHasHeading = true;
+        } else {
+            float dt = event.timestamp - mLastHeadingTimestamp;
+            float alpha = dt > 0 ? dt / (HEADING_FILTER_TIME_CONSTANT_NANOS + dt) : 0f;
+            float delta = mod(heading - mHeading + 180f, 360f) - 180f;
+            mHeading = mod(mHeading + alpha * delta, 360f);
+        }
+        mLastHeadingTimestamp = event.timestamp;
+    }
+
+    /**
+     * Integrates the horizontal acceleration into the fused speed and hands the result to the speed
+     * sample listener, stamped with the sensor timestamp. The latest location fix is folded in here
+     * too, so that the fused speed is only ever touched on the sensor thread.
+     * <p>
+     * Once GPS reports a bearing, only the acceleration along it is integrated, which keeps
+     * cornering out of the speed. Before that, during a launch and while the GPS speed lags behind,
+     * the velocity is integrated as a vector in the world frame and its length is the speed, so
+     * that looking around does not change the result.
+     */
+    private void updateFusedSpeed(SensorEvent event) {
+        long timestamp = event.timestamp;
+        long last = mLastAccelerationTimestamp;
+        mLastAccelerationTimestamp = timestamp;
+
+        OnSpeedSampleListener listener = mFusedSpeedListener;
+        if (last == 0 || !mHasHeading || listener == null) {
+            return;
+        }
+
+        Location location = mLocation;
+        if (location != null && location != mCorrectedLocation) {
+            mCorrectedLocation = location;
+            correctFusedSpeed(location);
+        }
+
+        // Rotate the device acceleration into the world frame (X east, Y magnetic north).
+        float[] a = event.values;
+        float[] r = mRotationMatrix;
+        float east = r[0] * a[0] + r[1] * a[1] + r[2] * a[2];
+        float north = r[4] * a[0] + r[5] * a[1] + r[6] * a[2];
+
+        float dt = (timestamp - last) * 1e-9f;
+        if (location != null && location.hasBearing()
+                && location.getSpeed() > MIN_BEARING_SPEED) {
+            double magneticTravel = Math.toRadians(location.getBearing() - mDeclination);
+            float sin = (float) Math.sin(magneticTravel);
+            float cos = (float) Math.cos(magneticTravel);
+            float speed = Math.max(0f, mFusedSpeed + (east * sin + north * cos) * dt);
+            // Kept along the bearing, so that the vector carries on if the bearing is lost.
+            mFusedVelocityEast = speed * sin;
+            mFusedVelocityNorth = speed * cos;
+        } else {
+            mFusedVelocityEast += east * dt;
+            mFusedVelocityNorth += north * dt;
+        }
+        mFusedSpeed = (float) Math.sqrt(mFusedVelocityEast * mFusedVelocityEast
+                + mFusedVelocityNorth * mFusedVelocityNorth);
+        listener.onSpeedSample(timestamp, mFusedSpeed);
+    }
+
+    /**
+     * Pulls the fused speed towards the speed of a new location fix, keeping the direction of the
+     * fused velocity.
+     */
+    private void correctFusedSpeed(Location location) {
+        float speed = location.getSpeed();
+        float corrected;
+        if (speed < STANDSTILL_GPS_SPEED) {
+            corrected = mFusedSpeed < MAX_DRIFT_SPEED ? 0f : mFusedSpeed;
+        } else {
+            corrected = mFusedSpeed + GPS_SPEED_CORRECTION * (speed - mFusedSpeed);
+        }
+
+        if (mFusedSpeed > 0f) {
+            float scale = corrected / mFusedSpeed;
+            mFusedVelocityEast *= scale;
+            mFusedVelocityNorth *= scale;
+        } else if (location.hasBearing()) {
+            double magneticTravel = Math.toRadians(location.getBearing() - mDeclination);
+            mFusedVelocityEast = corrected * (float) Math.sin(magneticTravel);
+            mFusedVelocityNorth = corrected * (float) Math.cos(magneticTravel);
+        } else {
+            // Without a direction the correction has to wait for the next fix.
+            corrected = 0f;
+        }
+        mFusedSpeed = corrected;
+    }
+
+    /**
+     * Delivers the speed of a location fix as a speed sample when no fused speed is available.
+     */
+    private void deliverLocationSpeed(Location location) {
+        if (mSpeedSampleListener != null && !mUseFusedSpeed) {
+            mSpeedSampleListener.onSpeedSample(System.nanoTime(), location.getSpeed());
+        }
+    }
+
+    /**
+     * Calculates {@code a mod b} in a way that respects negative values (for example,
+     * {@code mod(-1, 5) == 4}, rather than {@code -1}).
+     */
+    private static float mod(float a, float b) {
+        return (a % b + b) % b;
+    }
+
     /**
      * Notifies all listeners that the user's location has changed.
      */
@@ -172,4 +550,14 @@ public class StateLocationManager {
             listener.onLocationChanged(this);
         }
     }
+
+    /**
+     * Notifies all listeners that the user's heading has changed. A listener added or removed
+     * meanwhile only takes effect from the next event.
+     */
+    private void notifyOrientationChanged() {
+        for (OnChangedListener listener : mListeners) {
+            listener.onOrientationChanged(this);
+        }
+    }
 }
@@ -0,0 +1,312 @@
+package com.glass.speedhelper.managers;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import android.location.Location;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.glass.speedhelper.trip.TripFormat;
+import com.glass.speedhelper.trip.TripWriter;
+
+/**
+ * Records the fixes observed by a {@link StateLocationManager} into a trip file, one file per
+ * recording session, so that they can be pulled off the device later.
+ * <p>
+ * Trips are kept in private storage. {@link #export(File)} copies them to a directory the user
+ * can reach, such as the app's external files directory, which can be pulled over USB.
+ * <p>
+ * Buffered fixes are written out every {@link #FLUSH_INTERVAL_MILLIS} on a timer, even while no
+ * fixes arrive, so that little is lost if the process is killed. Whenever a file is opened, the
+ * oldest trips are deleted to keep the directory within {@link #MAX_FILES} files and
+ * {@link #MAX_TOTAL_BYTES}. A trip that grows beyond {@link #MAX_FILE_BYTES} is continued in a new
+ * file.
+ */
+public class TripRecorder implements StateLocationManager.OnChangedListener {
+
+    private static final String TAG = TripRecorder.class.getSimpleName();
+
+    /** The longest time fixes are buffered before they are written to the file. */
+    private static final long FLUSH_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    /** The size at which a trip is continued in a new file. */
+    private static final long MAX_FILE_BYTES = 4 * 1024 * 1024;
+
+    /** The most trip files kept. */
+    private static final int MAX_FILES = 50;
+
+    /** The most space all trip files together may take. */
+    private static final long MAX_TOTAL_BYTES = 32 * 1024 * 1024;
+
+    private static final Comparator<File> OLDEST_FIRST = new Comparator<File>() {
+        @Override
+        public int compare(File lhs, File rhs) {
+            long lhsModified = lhs.lastModified();
+            long rhsModified = rhs.lastModified();
+            return lhsModified < rhsModified ? -1 : (lhsModified == rhsModified ? 0 : 1);
+        }
+    };
+
+    /** Keeps two exports from copying into the same directory at once. */
+    private static final Object EXPORT_LOCK = new Object();
+
+    private final File mDirectory;
+
+    /** Runs the periodic flush on the main thread, where fixes are recorded. */
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private TripWriter mWriter;
+    private File mFile;
+    private long mLastTime;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+            // A rollover to a new file has already scheduled the next flush.
+            mHandler.removeCallbacks(this);
+            if (mWriter != null) {
+                mHandler.postDelayed(this, FLUSH_INTERVAL_MILLIS);
+            }
+        }
+    };
+
+    /**
+     * Creates a recorder that writes its trip files to {@code directory}.
+     */
+    public TripRecorder(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * Opens a new trip file and starts recording the fixes of {@code stateLocationManager}.
+     */
+    public void start(StateLocationManager stateLocationManager) {
+        if (mWriter != null) {
+            return;
+        }
+
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.w(TAG, "Cannot create trip directory " + mDirectory);
+            return;
+        }
+
+        if (openWriter()) {
+            mLastTime = 0;
+            stateLocationManager.addOnChangedListener(this);
+        }
+    }
+
+    /**
+     * Returns true while a trip file is open.
+     */
+    public boolean isRecording() {
+        return mWriter != null;
+    }
+
+    /**
+     * Copies the recorded trips, including what has been recorded of the current one, into
+     * {@code destination} in the background. Trips that were already exported and have not grown
+     * since are skipped. This must be called on the main thread.
+     */
+    public void export(final File destination) {
+        flush();
+
+        final File[] trips = mDirectory.listFiles();
+        if (trips == null) {
+            return;
+        }
+        // The current trip keeps growing while it is copied; only the flushed part is complete.
+        final long[] lengths = new long[trips.length];
+        for (int i = 0; i < trips.length; i++) {
+            lengths[i] = trips[i].length();
+        }
+
+        new Thread(TAG) {
+            @Override
+            public void run() {
+                synchronized (EXPORT_LOCK) {
+                    copyTrips(trips, lengths, destination);
+                }
+            }
+        }.start();
+    }
+
+    private static void copyTrips(File[] trips, long[] lengths, File destination) {
+        if (!destination.isDirectory() && !destination.mkdirs()) {
+            Log.w(TAG, "Cannot create export directory " + destination);
+            return;
+        }
+
+        int copied = 0;
+        byte[] buffer = new byte[8192];
+        for (int i = 0; i < trips.length; i++) {
+            File exported = new File(destination, trips[i].getName());
+            if (exported.length() == lengths[i]) {
+                continue;
+            }
+            try {
+                copy(trips[i], lengths[i], exported, buffer);
+                copied++;
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot export trip " + trips[i].getName(), e);
+                exported.delete();
+            }
+        }
+        Log.i(TAG, "Exported " + copied + " trips to " + destination);
+    }
+
+    private static void copy(File from, long length, File to, byte[] buffer) throws IOException {
+        InputStream in = new FileInputStream(from);
+        try {
+            OutputStream out = new FileOutputStream(to);
+            try {
+                long remaining = length;
+                while (remaining > 0) {
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read < 0) {
+                        throw new IOException("Trip " + from.getName() + " shrank while copying");
+                    }
+                    out.write(buffer, 0, read);
+                    remaining -= read;
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Stops recording and closes the current trip file.
+     */
+    public void stop(StateLocationManager stateLocationManager) {
+        stateLocationManager.removeOnChangedListener(this);
+        closeWriter();
+    }
+
+    @Override
+    public void onLocationChanged(StateLocationManager stateLocationManager) {
+        Location location = stateLocationManager.getLocation();
+
+        // The same fix may be delivered more than once; only keep fixes that move time forward.
+        if (mWriter == null || location == null || location.getTime() <= mLastTime) {
+            return;
+        }
+        mLastTime = location.getTime();
+
+        try {
+            mWriter.append(location);
+        } catch (IOException e) {
+            // The recorder stays registered and ignores later fixes until it is stopped.
+            Log.w(TAG, "Cannot write trip file, recording stopped", e);
+            closeWriter();
+        }
+    }
+
+    @Override
+    public void onOrientationChanged(StateLocationManager stateLocationManager) {
+        // Only fixes are recorded.
+    }
+
+    /**
+     * Writes out the buffered fixes, and continues the trip in a new file once the current one is
+     * full.
+     */
+    private void flush() {
+        if (mWriter == null) {
+            return;
+        }
+
+        try {
+            mWriter.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write trip file, recording stopped", e);
+            closeWriter();
+            return;
+        }
+
+        if (mFile.length() >= MAX_FILE_BYTES) {
+            closeWriter();
+            openWriter();
+        }
+    }
+
+    /**
+     * Makes room for a new trip file and opens it.
+     *
+     * @return false if the file cannot be opened
+     */
+    private boolean openWriter() {
+        deleteOldTrips();
+
+        String name = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+        File file = new File(mDirectory, name + TripFormat.FILE_EXTENSION);
+        for (int i = 1; file.exists(); i++) {
+            file = new File(mDirectory, name + "-" + i + TripFormat.FILE_EXTENSION);
+        }
+
+        try {
+            mWriter = new TripWriter(new FileOutputStream(file));
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot open trip file " + file, e);
+            return false;
+        }
+        mFile = file;
+        mHandler.postDelayed(mFlushRunnable, FLUSH_INTERVAL_MILLIS);
+        return true;
+    }
+
+    /**
+     * Deletes the oldest trips until one more file fits within the limits.
+     */
+    private void deleteOldTrips() {
+        File[] trips = mDirectory.listFiles();
+        if (trips == null) {
+            return;
+        }
+        Arrays.sort(trips, OLDEST_FIRST);
+
+        long totalBytes = 0;
+        for (File trip : trips) {
+            totalBytes += trip.length();
+        }
+
+        int count = trips.length;
+        for (int i = 0; i < trips.length
+                && (count >= MAX_FILES || totalBytes + MAX_FILE_BYTES > MAX_TOTAL_BYTES); i++) {
+            long length = trips[i].length();
+            if (trips[i].delete()) {
+                count--;
+                totalBytes -= length;
+                Log.d(TAG, "Deleted old trip " + trips[i].getName());
+            }
+        }
+    }
+
+    private void closeWriter() {
+        if (mWriter != null) {
+            try {
+                mWriter.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot close trip file", e);
+            }
+            mWriter = null;
+            mFile = null;
+            mHandler.removeCallbacks(mFlushRunnable);
+        }
+    }
+}
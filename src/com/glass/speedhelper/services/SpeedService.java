@@ -1,20 +1,30 @@
 package com.glass.speedhelper.services;
 
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.hardware.SensorManager;
+import android.location.Location;
 import android.location.LocationManager;
 import android.os.Binder;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.speech.tts.TextToSpeech;
+import android.util.Log;
 
 import com.glass.speedhelper.MenuActivity;
 import com.glass.speedhelper.SpeedRenderer;
 import com.glass.speedhelper.gui.SpeedView;
+import com.glass.speedhelper.managers.AlertSpeaker;
 import com.glass.speedhelper.managers.StateLocationManager;
+import com.glass.speedhelper.managers.TripRecorder;
 import com.google.android.glass.timeline.LiveCard;
 import com.google.android.glass.timeline.LiveCard.PublishMode;
 import com.google.android.glass.timeline.TimelineManager;
@@ -24,10 +34,27 @@ import com.google.android.glass.timeline.TimelineManager;
  */
 public class SpeedService extends Service {
 
+    private static final String TAG = SpeedService.class.getSimpleName();
+
     private static final String LIVE_CARD_ID = "speed_helper";
     
     private static final String PREFERENCES_NAME = SpeedService.class.toString();
     private static final String PREFS_UOM_KEY = "key_uom";
+    private static final String PREFS_MAX_SPEED_KEY = "key_max_speed";
+    private static final String PREFS_RECORD_TRIPS_KEY = "key_record_trips";
+
+    /**
+     * The directory, under the app's private files, that holds the recorded trips. Exported trips go
+     * to a directory of the same name under the app's external files, where they can be pulled
+     * over USB with {@code adb pull /sdcard/Android/data/<package>/files/trips}.
+     */
+    private static final String TRIPS_DIRECTORY = "trips";
+
+    /** The directory, under the app's cache, that holds the pre-synthesized alert clips. */
+    private static final String SPEECH_DIRECTORY = "speech";
+
+    /** The minimum time between two overspeed warnings. */
+    private static final long OVERSPEED_REPEAT_MILLIS = TimeUnit.SECONDS.toMillis(10);
 
     /**
      * A binder that gives other components access to the speech capabilities provided by the
@@ -35,24 +62,16 @@ public class SpeedService extends Service {
      */
     public class SpeedBinder extends Binder {
         /**
-         * Read the current heading aloud using the text-to-speech engine.
+         * Read the speed limit aloud.
          */
         public void readMaxSpeed() {
-
-//            Resources res = getResources();
-//            String[] spokenDirections = res.getStringArray(R.array.spoken_directions);
-//            String directionName = spokenDirections[MathUtils.getHalfWindIndex(heading)];
-//
-//            int roundedHeading = Math.round(heading);
-//            int headingFormat;
-//            if (roundedHeading == 1) {
-//                headingFormat = R.string.spoken_heading_format_one;
-//            } else {
-//                headingFormat = R.string.spoken_heading_format;
-//            }
-//
-//            String maxSpeedText = res.getString(headingFormat, roundedHeading, directionName);
-//            mSpeech.speak(maxSpeedText, TextToSpeech.QUEUE_FLUSH, null);
+            if (mMaxSpeed > 0) {
+                int uom = mRenderer.getUom();
+                mAlertSpeaker.speakSpeedLimit(
+                        Math.round(SpeedView.fromMetersPerSecond(mMaxSpeed, uom)), uom);
+            } else {
+                mAlertSpeaker.speakNoSpeedLimit();
+            }
         }
         
         public SpeedService getSpeedService() {
@@ -63,7 +82,48 @@ public class SpeedService extends Service {
     private final SpeedBinder mBinder = new SpeedBinder();
 
     private StateLocationManager mStateLocationManager;
+    private TripRecorder mTripRecorder;
     private TextToSpeech mSpeech;
+    private AlertSpeaker mAlertSpeaker;
+    private boolean mSpeechReady;
+
+    /** The speed limit, in m/s, or 0 if no limit is set. */
+    private float mMaxSpeed;
+    private long mLastOverspeedMillis;
+
+    private final StateLocationManager.OnChangedListener mOverspeedListener =
+            new StateLocationManager.OnChangedListener() {
+
+        @Override
+        public void onLocationChanged(StateLocationManager stateLocationManager) {
+            Location location = stateLocationManager.getLocation();
+            long now = SystemClock.elapsedRealtime();
+            if (mMaxSpeed > 0 && location.getSpeed() > mMaxSpeed
+                    && now - mLastOverspeedMillis >= OVERSPEED_REPEAT_MILLIS) {
+                mLastOverspeedMillis = now;
+                int uom = mRenderer.getUom();
+                mAlertSpeaker.speakOverspeed(
+                        Math.round(SpeedView.fromMetersPerSecond(location.getSpeed(), uom)), uom);
+            }
+        }
+
+        @Override
+        public void onOrientationChanged(StateLocationManager stateLocationManager) {
+            // Only the speed matters here.
+        }
+    };
+
+    /**
+     * Rebuilds the alert clips when the locale changes, since they are spoken in its language.
+     */
+    private final BroadcastReceiver mLocaleReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (mSpeechReady) {
+                mAlertSpeaker.prepare();
+            }
+        }
+    };
 
     private TimelineManager mTimelineManager;
     private LiveCard mLiveCard;
@@ -75,15 +135,21 @@ public class SpeedService extends Service {
 
         mTimelineManager = TimelineManager.from(this);
 
-        // Even though the text-to-speech engine is only used in response to a menu action, we
-        // initialize it when the application starts so that we avoid delays that could occur
-        // if we waited until it was needed to start it up.
+        // We initialize the text-to-speech engine when the application starts so that it can
+        // pre-synthesize the alert clips in the background, which avoids delays when an alert
+        // is spoken.
         mSpeech = new TextToSpeech(this, new TextToSpeech.OnInitListener() {
             @Override
             public void onInit(int status) {
-                // Do nothing.
+                if (status == TextToSpeech.SUCCESS && mAlertSpeaker != null) {
+                    mSpeechReady = true;
+                    mAlertSpeaker.prepare();
+                }
             }
         });
+        mAlertSpeaker = new AlertSpeaker(getResources(), mSpeech,
+                new File(getCacheDir(), SPEECH_DIRECTORY));
+        registerReceiver(mLocaleReceiver, new IntentFilter(Intent.ACTION_LOCALE_CHANGED));
 
         SensorManager sensorManager =
                 (SensorManager) getSystemService(Context.SENSOR_SERVICE); //Enabled to use sensors
@@ -91,6 +157,14 @@ public class SpeedService extends Service {
                 (LocationManager) getSystemService(Context.LOCATION_SERVICE);
 
         mStateLocationManager = new StateLocationManager(sensorManager, locationManager);
+
+        // Trips are kept in private storage, since they are a precise record of where the user
+        // has been.
+        mTripRecorder = new TripRecorder(new File(getFilesDir(), TRIPS_DIRECTORY));
+
+        SharedPreferences prefs =
+                        getSharedPreferences(PREFERENCES_NAME, MODE_PRIVATE);
+        mMaxSpeed = prefs.getFloat(PREFS_MAX_SPEED_KEY, 0f);
     }
 
     @Override
@@ -114,10 +188,16 @@ public class SpeedService extends Service {
             mLiveCard.setAction(PendingIntent.getActivity(this, 0, menuIntent, 0));
             
             mLiveCard.publish(PublishMode.REVEAL);
+
+            mStateLocationManager.addOnChangedListener(mOverspeedListener);
         }
         
         SharedPreferences prefs =
                         getSharedPreferences(PREFERENCES_NAME, MODE_PRIVATE);
+        // Trips are only recorded once the user has asked for it.
+        if (prefs.getBoolean(PREFS_RECORD_TRIPS_KEY, false)) {
+            mTripRecorder.start(mStateLocationManager);
+        }
         int uom = prefs.getInt(PREFS_UOM_KEY, SpeedView.DEFAULT);
         mRenderer.setUom(uom);
 
@@ -138,9 +218,16 @@ public class SpeedService extends Service {
             mLiveCard = null;
         }
 
+        mTripRecorder.stop(mStateLocationManager);
+        mStateLocationManager.removeOnChangedListener(mOverspeedListener);
+
+        unregisterReceiver(mLocaleReceiver);
+        mAlertSpeaker.shutdown();
         mSpeech.shutdown();
 
+        mAlertSpeaker = null;
         mSpeech = null;
+        mTripRecorder = null;
         mStateLocationManager = null;
 
         super.onDestroy();
@@ -149,4 +236,64 @@ public class SpeedService extends Service {
     public void setUom(int uom) {
         mRenderer.setUom(uom);
     }
+
+    public int getUom() {
+        return mRenderer.getUom();
+    }
+
+    /**
+     * Sets the speed limit above which the overspeed warning is spoken.
+     *
+     * @param speed the limit in the given unit, or 0 to clear it
+     * @param uom the unit of measurement of {@code speed}
+     */
+    public void setMaxSpeed(float speed, int uom) {
+        mMaxSpeed = Math.max(0f, SpeedView.toMetersPerSecond(speed, uom));
+        mLastOverspeedMillis = 0;
+
+        // Stored right away, since the limit matters more than the unit if the service dies.
+        SharedPreferences prefs =
+                        getSharedPreferences(PREFERENCES_NAME, MODE_PRIVATE);
+        prefs.edit().putFloat(PREFS_MAX_SPEED_KEY, mMaxSpeed).commit();
+    }
+
+    /**
+     * Switches trip recording on or off. The choice is remembered across restarts.
+     */
+    public void toggleTripRecording() {
+        boolean record = !mTripRecorder.isRecording();
+        if (record) {
+            mTripRecorder.start(mStateLocationManager);
+        } else {
+            mTripRecorder.stop(mStateLocationManager);
+        }
+
+        SharedPreferences prefs =
+                        getSharedPreferences(PREFERENCES_NAME, MODE_PRIVATE);
+        prefs.edit().putBoolean(PREFS_RECORD_TRIPS_KEY, record).commit();
+    }
+
+    public boolean isRecordingTrips() {
+        return mTripRecorder.isRecording();
+    }
+
+    /**
+     * Copies the recorded trips to external storage so that they can be pulled off the device.
+     * Only done when the user asks for it, since anything there is readable by other apps.
+     */
+    public void exportTrips() {
+        File externalDir = getExternalFilesDir(null);
+        if (externalDir == null) {
+            Log.w(TAG, "External storage is not available, trips not exported");
+            return;
+        }
+        mTripRecorder.export(new File(externalDir, TRIPS_DIRECTORY));
+    }
+
+    /**
+     * Switches the acceleration timing mode on or off.
+     */
+    public void toggleTimingMode() {
+        mRenderer.setTimingMode(!mRenderer.isTimingMode());
+    }
 }
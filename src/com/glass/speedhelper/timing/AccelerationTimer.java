@@ -0,0 +1,249 @@
+package com.glass.speedhelper.timing;
+
+import java.util.concurrent.TimeUnit;
+
+import com.glass.speedhelper.managers.StateLocationManager;
+
+/**
+ * Times standing-start acceleration runs from a stream of timestamped speed samples.
+ * <p>
+ * The timer arms itself while the vehicle is stopped, starts when it launches and records the
+ * time at which each speed threshold and the target distance are first reached. Crossings are
+ * found by linear interpolation between the two samples around them, so the result does not
+ * depend on where the samples happen to fall.
+ * <p>
+ * Samples are delivered on a single thread, the sensor thread or the main thread depending on
+ * the sensors available, while the results are read by the render thread, so the published values
+ * are volatile.
+ */
+public class AccelerationTimer implements StateLocationManager.OnSpeedSampleListener {
+
+    /** The speed thresholds, in m/s, that are timed: 50 and 100 km/h. */
+    public static final float[] SPEED_THRESHOLDS = { 50f / 3.6f, 100f / 3.6f };
+
+    /** The labels shown for {@link #SPEED_THRESHOLDS}. */
+    public static final String[] SPEED_LABELS = { "0-50", "0-100" };
+
+    /** The timed distance, in meters: a quarter mile. */
+    public static final float DISTANCE_METERS = 402.336f;
+
+    /** The label shown for {@link #DISTANCE_METERS}. */
+    public static final String DISTANCE_LABEL = "1/4 mi";
+
+    /** The value of a split that has not been reached yet. */
+    public static final long NOT_REACHED = -1;
+
+    /** Below this speed, in m/s, the vehicle is considered stopped. */
+    private static final float STANDSTILL_SPEED = 0.3f;
+
+    /**
+     * A gap between samples longer than this discards the run, since it cannot be trusted. It is
+     * long enough to accept 1 Hz location fixes when no acceleration sensor is available.
+     */
+    private static final long MAX_SAMPLE_GAP_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    /**
+     * How long after the launch sample the launch slope is measured. Measuring it over a window
+     * rather than between two adjacent samples keeps sensor noise out of the start time.
+     */
+    private static final long LAUNCH_FIT_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+
+    /** The furthest back the start of a run is extrapolated from the launch sample. */
+    private static final long MAX_LAUNCH_EXTRAPOLATION_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_ARMED = 1;
+    private static final int STATE_RUNNING = 2;
+    private static final int STATE_DONE = 3;
+
+    /** The sensor timestamps at which the speed thresholds were crossed. */
+    private final long[] mSplitTimestamps = new long[SPEED_THRESHOLDS.length];
+    private long mDistanceTimestamp;
+
+    private int mState = STATE_IDLE;
+    private long mLastNanos;
+    private float mLastSpeed;
+
+    private long mLaunchNanos;
+    private float mLaunchSpeed;
+    private long mStartNanos;
+    private boolean mStartFixed;
+    private double mDistance;
+
+    private volatile long mElapsedNanos;
+    private volatile long mDistanceSplit;
+    private volatile long[] mSplits;
+
+    public AccelerationTimer() {
+        clearSplits();
+    }
+
+    @Override
+    public void onSpeedSample(long timestampNanos, float speed) {
+        long dt = timestampNanos - mLastNanos;
+        boolean gap = mState != STATE_IDLE && (dt <= 0 || dt > MAX_SAMPLE_GAP_NANOS);
+
+        switch (mState) {
+        case STATE_IDLE:
+        case STATE_DONE:
+            if (speed < STANDSTILL_SPEED) {
+                mState = STATE_ARMED;
+            }
+            break;
+        case STATE_ARMED:
+            if (!gap && speed >= STANDSTILL_SPEED) {
+                launch(timestampNanos, speed);
+            }
+            break;
+        case STATE_RUNNING:
+            if (gap || speed < STANDSTILL_SPEED) {
+                // The run was aborted or cannot be trusted; wait for the next standing start.
+                mState = speed < STANDSTILL_SPEED ? STATE_ARMED : STATE_IDLE;
+            } else {
+                advance(timestampNanos, speed);
+            }
+            break;
+        default:
+            break;
+        }
+
+        mLastNanos = timestampNanos;
+        mLastSpeed = speed;
+    }
+
+    /**
+     * Returns the time, in nanoseconds, since the start of the current or last run.
+     */
+    public long getElapsedNanos() {
+        return mElapsedNanos;
+    }
+
+    /**
+     * Returns the time, in nanoseconds, at which {@link #SPEED_THRESHOLDS}{@code [index]} was
+     * reached, or {@link #NOT_REACHED}.
+     */
+    public long getSpeedSplitNanos(int index) {
+        return mSplits[index];
+    }
+
+    /**
+     * Returns the time, in nanoseconds, at which {@link #DISTANCE_METERS} was covered, or
+     * {@link #NOT_REACHED}.
+     */
+    public long getDistanceSplitNanos() {
+        return mDistanceSplit;
+    }
+
+    /**
+     * Starts a run at the first sample above the standstill speed. The start time is provisional
+     * until {@link #fixStart(long, float)} extrapolates it back to zero speed.
+     */
+    private void launch(long timestampNanos, float speed) {
+        clearSplits();
+        mLaunchNanos = timestampNanos;
+        mLaunchSpeed = speed;
+        mStartNanos = timestampNanos;
+        mStartFixed = false;
+        mDistance = 0.0;
+        mState = STATE_RUNNING;
+
+        checkCrossings(mLastNanos, mLastSpeed, 0.0, timestampNanos, speed);
+    }
+
+    /**
+     * Integrates distance over the latest sample and records any crossings inside it.
+     */
+    private void advance(long timestampNanos, float speed) {
+        double previousDistance = mDistance;
+        mDistance += 0.5 * (mLastSpeed + speed) * (timestampNanos - mLastNanos) * 1e-9;
+
+        if (!mStartFixed && timestampNanos - mLaunchNanos >= LAUNCH_FIT_NANOS) {
+            fixStart(timestampNanos, speed);
+        }
+        mElapsedNanos = timestampNanos - mStartNanos;
+
+        checkCrossings(mLastNanos, mLastSpeed, previousDistance, timestampNanos, speed);
+    }
+
+    /**
+     * Extrapolates the start of the run back to zero speed along the slope measured since the
+     * launch sample, so that the standstill threshold does not bias the result.
+     */
+    private void fixStart(long timestampNanos, float speed) {
+        double slope = (speed - mLaunchSpeed) / (double) (timestampNanos - mLaunchNanos);
+        long extrapolation = slope > 0
+                ? (long) Math.min(mLaunchSpeed / slope, MAX_LAUNCH_EXTRAPOLATION_NANOS)
+                : 0;
+
+        mStartNanos = mLaunchNanos - extrapolation;
+        mStartFixed = true;
+        // Add the distance covered while accelerating up to the launch sample.
+        mDistance += 0.5 * mLaunchSpeed * extrapolation * 1e-9;
+        publishSplits();
+    }
+
+    private void checkCrossings(long t0, float v0, double d0, long t1, float v1) {
+        boolean changed = false;
+        for (int i = 0; i < mSplitTimestamps.length; i++) {
+            if (mSplitTimestamps[i] == NOT_REACHED && v1 >= SPEED_THRESHOLDS[i]) {
+                mSplitTimestamps[i] = interpolate(t0, v0, t1, v1, SPEED_THRESHOLDS[i]);
+                changed = true;
+            }
+        }
+        if (mDistanceTimestamp == NOT_REACHED && mDistance >= DISTANCE_METERS) {
+            mDistanceTimestamp = interpolate(t0, d0, t1, mDistance, DISTANCE_METERS);
+            changed = true;
+        }
+
+        if (changed && mStartFixed) {
+            publishSplits();
+        }
+    }
+
+    /**
+     * Publishes the splits relative to the start of the run. This allocates, but only happens a
+     * few times per run.
+     */
+    private void publishSplits() {
+        long[] splits = new long[mSplitTimestamps.length];
+        boolean done = mDistanceTimestamp != NOT_REACHED;
+        for (int i = 0; i < splits.length; i++) {
+            splits[i] = relative(mSplitTimestamps[i]);
+            done &= splits[i] != NOT_REACHED;
+        }
+        mSplits = splits;
+        mDistanceSplit = relative(mDistanceTimestamp);
+
+        if (done) {
+            mState = STATE_DONE;
+        }
+    }
+
+    private long relative(long timestamp) {
+        return timestamp == NOT_REACHED ? NOT_REACHED : timestamp - mStartNanos;
+    }
+
+    /**
+     * Returns the time at which a quantity that moves linearly from {@code y0} at {@code t0} to
+     * {@code y1} at {@code t1} equals {@code target}.
+     */
+    private static long interpolate(long t0, double y0, long t1, double y1, double target) {
+        if (y1 <= y0) {
+            return t1;
+        }
+        double fraction = Math.max(0.0, Math.min(1.0, (target - y0) / (y1 - y0)));
+        return t0 + Math.round(fraction * (t1 - t0));
+    }
+
+    private void clearSplits() {
+        long[] splits = new long[mSplitTimestamps.length];
+        for (int i = 0; i < splits.length; i++) {
+            mSplitTimestamps[i] = NOT_REACHED;
+            splits[i] = NOT_REACHED;
+        }
+        mDistanceTimestamp = NOT_REACHED;
+        mSplits = splits;
+        mDistanceSplit = NOT_REACHED;
+        mElapsedNanos = 0;
+    }
+}
@@ -0,0 +1,99 @@
+package com.glass.speedhelper.trip;
+
+/**
+ * Constants and primitive codecs shared by {@link TripWriter} and {@link TripReader}.
+ * <p>
+ * A trip file is a 5 byte header (the {@link #MAGIC} bytes followed by {@link #VERSION}) and a
+ * sequence of blocks. Each block is laid out as:
+ *
+ * <pre>
+ *   varint  fix count (1..{@link #FIXES_PER_BLOCK})
+ *   varint  payload length in bytes
+ *   bytes   payload
+ *   int32   CRC32 of the payload, big endian
+ * </pre>
+ *
+ * Every fix in the payload is stored as five zig-zag varints holding the difference from the
+ * previous fix of the same block: time in milliseconds, latitude and longitude in
+ * {@link #COORDINATE_SCALE} units, speed in {@link #SPEED_SCALE} units and bearing in
+ * {@link #BEARING_SCALE} units. The delta state is reset at the start of every block, so a block
+ * whose payload is damaged can be skipped without affecting the ones after it. A damaged block
+ * header cannot be skipped, since the position of the next block is then unknown.
+ */
+public final class TripFormat {
+
+    /** The bytes that open every trip file. */
+    static final byte[] MAGIC = { 'G', 'S', 'H', 'T' };
+
+    /** The current version of the format. */
+    static final int VERSION = 1;
+
+    /** The maximum number of fixes stored in a single block. */
+    static final int FIXES_PER_BLOCK = 64;
+
+    /** The largest encoded size of a single fix: one 64 bit and four 32 bit varints. */
+    static final int MAX_FIX_BYTES = 10 + 4 * 5;
+
+    /** The largest payload a valid block can carry. */
+    static final int MAX_PAYLOAD_BYTES = FIXES_PER_BLOCK * MAX_FIX_BYTES;
+
+    /** Latitude and longitude are stored in units of 1e-7 degrees (about 1 cm at the equator). */
+    static final double COORDINATE_SCALE = 1e7;
+
+    /** Speed is stored in units of 1 cm/s. */
+    static final float SPEED_SCALE = 100f;
+
+    /** Bearing is stored in units of 0.1 degrees. */
+    static final float BEARING_SCALE = 10f;
+
+    /** The number of quantized bearing steps in a full circle. */
+    static final int BEARING_STEPS = 3600;
+
+    /** The file name extension used for trip files. */
+    public static final String FILE_EXTENSION = ".gsht";
+
+    private TripFormat() {
+    }
+
+    /**
+     * Maps a signed value onto an unsigned one so that small magnitudes encode to few bytes.
+     */
+    static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /**
+     * Reverses {@link #zigZag(long)}.
+     */
+    static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Writes {@code value} as an unsigned varint into {@code buffer} at {@code offset}.
+     *
+     * @return the offset just past the last written byte
+     */
+    static int writeVarint(byte[] buffer, int offset, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[offset++] = (byte) value;
+        return offset;
+    }
+
+    /**
+     * Wraps a bearing difference into the range [-{@link #BEARING_STEPS} / 2,
+     * {@link #BEARING_STEPS} / 2) so that crossing north stays a small delta.
+     */
+    static int wrapBearingDelta(int delta) {
+        delta %= BEARING_STEPS;
+        if (delta >= BEARING_STEPS / 2) {
+            delta -= BEARING_STEPS;
+        } else if (delta < -BEARING_STEPS / 2) {
+            delta += BEARING_STEPS;
+        }
+        return delta;
+    }
+}
@@ -0,0 +1,23 @@
+package com.glass.speedhelper.trip;
+
+/**
+ * A single decoded fix. {@link TripReader} fills the same instance for every fix it reads so that
+ * a whole file can be walked without allocating.
+ */
+public class TripPoint {
+
+    /** The UTC time of the fix, in milliseconds since the epoch. */
+    public long time;
+
+    /** The latitude, in degrees. */
+    public double latitude;
+
+    /** The longitude, in degrees. */
+    public double longitude;
+
+    /** The speed over ground, in m/s. */
+    public float speed;
+
+    /** The bearing, in degrees east of true north. */
+    public float bearing;
+}
@@ -0,0 +1,195 @@
+package com.glass.speedhelper.trip;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+
+/**
+ * Streams fixes out of a file written by {@link TripWriter}.
+ * <p>
+ * Only one block is held in memory at a time, so files of any size are read in constant memory.
+ * Every block is checked against its CRC32 before any of its fixes are returned. A block whose
+ * payload fails the check is skipped and reading goes on with the next one; a damaged block header
+ * cannot be skipped, since the length of the block is then unknown.
+ */
+public class TripReader implements Closeable {
+
+    private final InputStream mIn;
+    private final CRC32 mCrc = new CRC32();
+    private final byte[] mPayload = new byte[TripFormat.MAX_PAYLOAD_BYTES];
+
+    private int mPayloadLength;
+    private int mPosition;
+    private int mFixesLeft;
+    private int mSkippedBlocks;
+
+    private long mLastTime;
+    private long mLastLatitude;
+    private long mLastLongitude;
+    private long mLastSpeed;
+    private long mLastBearing;
+
+    /**
+     * Creates a reader and validates the file header.
+     *
+     * @throws IOException if the stream cannot be read or is not a supported trip file
+     */
+    public TripReader(InputStream in) throws IOException {
+        mIn = in instanceof BufferedInputStream ? in : new BufferedInputStream(in);
+
+        for (byte expected : TripFormat.MAGIC) {
+            if (mIn.read() != expected) {
+                throw new IOException("Not a trip file");
+            }
+        }
+        int version = mIn.read();
+        if (version != TripFormat.VERSION) {
+            throw new IOException("Unsupported trip file version " + version);
+        }
+    }
+
+    /**
+     * Reads the next fix into {@code point}.
+     *
+     * @param point the instance to fill
+     * @return true if a fix was read, false at the end of the file
+     * @throws IOException if the stream cannot be read, a block header is damaged or the file is
+     *         truncated
+     */
+    public boolean next(TripPoint point) throws IOException {
+        if (mFixesLeft == 0 && !readBlock()) {
+            return false;
+        }
+
+        mLastTime += readSigned();
+        mLastLatitude += readSigned();
+        mLastLongitude += readSigned();
+        mLastSpeed += readSigned();
+        mLastBearing = (mLastBearing + readSigned() + TripFormat.BEARING_STEPS)
+                % TripFormat.BEARING_STEPS;
+        mFixesLeft--;
+
+        point.time = mLastTime;
+        point.latitude = mLastLatitude / TripFormat.COORDINATE_SCALE;
+        point.longitude = mLastLongitude / TripFormat.COORDINATE_SCALE;
+        point.speed = mLastSpeed / TripFormat.SPEED_SCALE;
+        point.bearing = mLastBearing / TripFormat.BEARING_SCALE;
+        return true;
+    }
+
+    /**
+     * Returns the number of blocks skipped so far because their payload failed the CRC check.
+     */
+    public int getSkippedBlocks() {
+        return mSkippedBlocks;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    /**
+     * Loads and verifies the next intact block, skipping any whose payload is damaged.
+     *
+     * @return true if a block was loaded, false at the end of the file
+     */
+    private boolean readBlock() throws IOException {
+        long count;
+        while (true) {
+            int first = mIn.read();
+            if (first < 0) {
+                return false;
+            }
+
+            count = readStreamVarint(first);
+            long length = readStreamVarint(mIn.read());
+            if (count < 1 || count > TripFormat.FIXES_PER_BLOCK
+                    || length < 1 || length > TripFormat.MAX_PAYLOAD_BYTES) {
+                throw new IOException("Corrupt trip block header");
+            }
+
+            mPayloadLength = (int) length;
+            readFully(mPayload, mPayloadLength);
+
+            long expected = 0;
+            for (int i = 0; i < 4; i++) {
+                expected = (expected << 8) | readByte();
+            }
+            mCrc.reset();
+            mCrc.update(mPayload, 0, mPayloadLength);
+            if (mCrc.getValue() == expected) {
+                break;
+            }
+            // The header was intact, so the next block starts right after this one.
+            mSkippedBlocks++;
+        }
+
+        mPosition = 0;
+        mFixesLeft = (int) count;
+        mLastTime = 0;
+        mLastLatitude = 0;
+        mLastLongitude = 0;
+        mLastSpeed = 0;
+        mLastBearing = 0;
+        return true;
+    }
+
+    /**
+     * Decodes the next zig-zag varint from the current block payload.
+     */
+    private long readSigned() throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (mPosition >= mPayloadLength) {
+                throw new IOException("Truncated trip block");
+            }
+            int b = mPayload[mPosition++];
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return TripFormat.unZigZag(result);
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * Decodes an unsigned varint from the stream whose first byte has already been read.
+     */
+    private long readStreamVarint(int b) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (b < 0) {
+                throw new EOFException("Truncated trip block header");
+            }
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+            b = mIn.read();
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private int readByte() throws IOException {
+        int b = mIn.read();
+        if (b < 0) {
+            throw new EOFException("Truncated trip block");
+        }
+        return b;
+    }
+
+    private void readFully(byte[] buffer, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int read = mIn.read(buffer, offset, length - offset);
+            if (read < 0) {
+                throw new EOFException("Truncated trip block");
+            }
+            offset += read;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.glass.speedhelper.trip;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+
+import android.location.Location;
+
+/**
+ * Streams location fixes into the compact trip format described by {@link TripFormat}.
+ * <p>
+ * Fixes are encoded into a fixed size block buffer as they arrive and the block is written to
+ * the underlying stream once it holds {@link TripFormat#FIXES_PER_BLOCK} fixes, so memory use does
+ * not grow with the length of the trip and no allocation happens per fix.
+ */
+public class TripWriter implements Closeable {
+
+    private final OutputStream mOut;
+    private final CRC32 mCrc = new CRC32();
+    private final byte[] mPayload = new byte[TripFormat.MAX_PAYLOAD_BYTES];
+    private final byte[] mHeader = new byte[2 * 5 + 4];
+
+    private int mPayloadLength;
+    private int mFixCount;
+
+    private long mLastTime;
+    private int mLastLatitude;
+    private int mLastLongitude;
+    private int mLastSpeed;
+    private int mLastBearing;
+
+    /**
+     * Creates a writer and immediately writes the file header to {@code out}.
+     */
+    public TripWriter(OutputStream out) throws IOException {
+        mOut = out;
+        mOut.write(TripFormat.MAGIC);
+        mOut.write(TripFormat.VERSION);
+    }
+
+    /**
+     * Appends a fix taken from an Android {@link Location}.
+     */
+    public void append(Location location) throws IOException {
+        append(location.getTime(), location.getLatitude(), location.getLongitude(),
+                location.getSpeed(), location.getBearing());
+    }
+
+    /**
+     * Appends a fix.
+     *
+     * @param time the UTC time of the fix, in milliseconds since the epoch
+     * @param latitude the latitude, in degrees
+     * @param longitude the longitude, in degrees
+     * @param speed the speed over ground, in m/s
+     * @param bearing the bearing, in degrees east of true north
+     */
+    public void append(long time, double latitude, double longitude, float speed, float bearing)
+            throws IOException {
+        int lat = (int) Math.round(latitude * TripFormat.COORDINATE_SCALE);
+        int lon = (int) Math.round(longitude * TripFormat.COORDINATE_SCALE);
+        int spd = Math.round(Math.max(speed, 0f) * TripFormat.SPEED_SCALE);
+        int brg = Math.round(bearing * TripFormat.BEARING_SCALE) % TripFormat.BEARING_STEPS;
+        if (brg < 0) {
+            brg += TripFormat.BEARING_STEPS;
+        }
+
+        putSigned(time - mLastTime);
+        putSigned((long) lat - mLastLatitude);
+        putSigned((long) lon - mLastLongitude);
+        putSigned(spd - mLastSpeed);
+        putSigned(TripFormat.wrapBearingDelta(brg - mLastBearing));
+
+        mLastTime = time;
+        mLastLatitude = lat;
+        mLastLongitude = lon;
+        mLastSpeed = spd;
+        mLastBearing = brg;
+
+        if (++mFixCount == TripFormat.FIXES_PER_BLOCK) {
+            writeBlock();
+        }
+    }
+
+    /**
+     * Writes any buffered fixes as a (possibly short) block and flushes the underlying stream.
+     */
+    public void flush() throws IOException {
+        writeBlock();
+        mOut.flush();
+    }
+
+    /**
+     * Flushes the buffered fixes and closes the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            mOut.close();
+        }
+    }
+
+    /**
+     * Appends a zig-zag encoded signed value to the current block payload.
+     */
+    private void putSigned(long value) {
+        mPayloadLength = TripFormat.writeVarint(mPayload, mPayloadLength,
+                TripFormat.zigZag(value));
+    }
+
+    /**
+     * Writes the current block, if it holds any fixes, and resets the delta state.
+     */
+    private void writeBlock() throws IOException {
+        if (mFixCount == 0) {
+            return;
+        }
+
+        mCrc.reset();
+        mCrc.update(mPayload, 0, mPayloadLength);
+        long crc = mCrc.getValue();
+
+        int offset = TripFormat.writeVarint(mHeader, 0, mFixCount);
+        offset = TripFormat.writeVarint(mHeader, offset, mPayloadLength);
+        mOut.write(mHeader, 0, offset);
+        mOut.write(mPayload, 0, mPayloadLength);
+        mHeader[0] = (byte) (crc >>> 24);
+        mHeader[1] = (byte) (crc >>> 16);
+        mHeader[2] = (byte) (crc >>> 8);
+        mHeader[3] = (byte) crc;
+        mOut.write(mHeader, 0, 4);
+
+        mPayloadLength = 0;
+        mFixCount = 0;
+        mLastTime = 0;
+        mLastLatitude = 0;
+        mLastLongitude = 0;
+        mLastSpeed = 0;
+        mLastBearing = 0;
+    }
+}
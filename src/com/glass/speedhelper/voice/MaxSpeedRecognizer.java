@@ -0,0 +1,178 @@
+package com.glass.speedhelper.voice;
+
+import java.util.List;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.speech.RecognitionListener;
+import android.speech.RecognizerIntent;
+import android.speech.SpeechRecognizer;
+import android.util.Log;
+
+import com.glass.speedhelper.voice.SpeedCommandParser.SpeedCommand;
+
+/**
+ * Listens for a spoken speed limit and reports it as soon as it is known, without waiting for the
+ * recognizer to finish.
+ * <p>
+ * A partial result is accepted once its number can no longer change ("sixty five", but not
+ * "sixty") and either a unit follows it or the recognizer has repeated it. Once the unit is known
+ * the recognizer is stopped; until then a later partial result that names a unit, or the final
+ * n-best list, corrects the accepted limit, so that "65" followed by "65 mph" ends in miles per
+ * hour. Without a confident partial result the limit is taken from the final n-best list.
+ */
+public class MaxSpeedRecognizer implements RecognitionListener {
+
+    private static final String TAG = MaxSpeedRecognizer.class.getSimpleName();
+
+    /** The number of hypotheses requested for the final result. */
+    private static final int MAX_RESULTS = 5;
+
+    /**
+     * Receives the outcome of the recognition. Both methods are called on the main thread.
+     */
+    public interface Callback {
+        /**
+         * Called with the recognized command, and again whenever a later result corrects it.
+         */
+        void onMaxSpeed(SpeedCommand command);
+
+        /**
+         * Called once the recognizer is done, whether or not a command was recognized.
+         */
+        void onFinished();
+    }
+
+    private final Context mContext;
+    private final Callback mCallback;
+    private SpeechRecognizer mRecognizer;
+
+    private SpeedCommand mLastPartial;
+    private SpeedCommand mAccepted;
+    private boolean mStopped;
+    private long mSpeechStartMillis;
+
+    public MaxSpeedRecognizer(Context context, Callback callback) {
+        mContext = context;
+        mCallback = callback;
+    }
+
+    /**
+     * Returns true if a speech recognition service is available to this application.
+     */
+    public static boolean isAvailable(Context context) {
+        return SpeechRecognizer.isRecognitionAvailable(context);
+    }
+
+    /**
+     * Starts listening. This must be called on the main thread.
+     */
+    public void start() {
+        mRecognizer = SpeechRecognizer.createSpeechRecognizer(mContext);
+        mRecognizer.setRecognitionListener(this);
+
+        Intent intent = new Intent(RecognizerIntent.ACTION_RECOGNIZE_SPEECH);
+        intent.putExtra(RecognizerIntent.EXTRA_LANGUAGE_MODEL,
+                RecognizerIntent.LANGUAGE_MODEL_FREE_FORM);
+        intent.putExtra(RecognizerIntent.EXTRA_PARTIAL_RESULTS, true);
+        intent.putExtra(RecognizerIntent.EXTRA_MAX_RESULTS, MAX_RESULTS);
+        intent.putExtra(RecognizerIntent.EXTRA_CALLING_PACKAGE, mContext.getPackageName());
+        mRecognizer.startListening(intent);
+    }
+
+    /**
+     * Stops listening and releases the recognizer. No callback is made afterwards.
+     */
+    public void destroy() {
+        if (mRecognizer != null) {
+            mRecognizer.destroy();
+            mRecognizer = null;
+        }
+    }
+
+    @Override
+    public void onReadyForSpeech(Bundle params) {
+        // Don't need to do anything here.
+    }
+
+    @Override
+    public void onBeginningOfSpeech() {
+        mSpeechStartMillis = SystemClock.elapsedRealtime();
+    }
+
+    @Override
+    public void onRmsChanged(float rmsdB) {
+        // Don't need to do anything here.
+    }
+
+    @Override
+    public void onBufferReceived(byte[] buffer) {
+        // Don't need to do anything here.
+    }
+
+    @Override
+    public void onEndOfSpeech() {
+        // Don't need to do anything here.
+    }
+
+    @Override
+    public void onPartialResults(Bundle partialResults) {
+        List<String> results =
+                partialResults.getStringArrayList(SpeechRecognizer.RESULTS_RECOGNITION);
+        if (mStopped || results == null || results.isEmpty()) {
+            return;
+        }
+
+        SpeedCommand command = SpeedCommandParser.parse(results.get(0));
+        if (command != null && command.complete) {
+            boolean hasUnit = command.uom != SpeedCommandParser.UNIT_UNSPECIFIED;
+            if (hasUnit || (mAccepted == null && command.sameAs(mLastPartial))) {
+                Log.d(TAG, "Accepted partial result \"" + results.get(0) + "\" after "
+                        + (SystemClock.elapsedRealtime() - mSpeechStartMillis) + " ms");
+                accept(command);
+            }
+            if (hasUnit) {
+                // The limit is known, so there is no need to wait for the end of speech.
+                mStopped = true;
+                mRecognizer.stopListening();
+            }
+        }
+        mLastPartial = command;
+    }
+
+    @Override
+    public void onResults(Bundle results) {
+        SpeedCommand command = SpeedCommandParser.parseBest(
+                results.getStringArrayList(SpeechRecognizer.RESULTS_RECOGNITION));
+        // The final result is only used if the accepted partial result named no unit.
+        if (command != null && !mStopped) {
+            accept(command);
+        }
+        finish();
+    }
+
+    @Override
+    public void onError(int error) {
+        Log.w(TAG, "Speech recognition failed with error " + error);
+        finish();
+    }
+
+    @Override
+    public void onEvent(int eventType, Bundle params) {
+        // Don't need to do anything here.
+    }
+
+    private void accept(SpeedCommand command) {
+        if (!command.sameAs(mAccepted)) {
+            mAccepted = command;
+            mCallback.onMaxSpeed(command);
+        }
+    }
+
+    private void finish() {
+        destroy();
+        mCallback.onFinished();
+    }
+}
@@ -0,0 +1,345 @@
+package com.glass.speedhelper.voice;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import com.glass.speedhelper.gui.SpeedView;
+
+/**
+ * Pulls a speed limit and an optional unit out of recognized speech, such as "sixty five",
+ * "65 mph", "a hundred and ten" or "set the limit to eighty kilometers per hour".
+ * <p>
+ * Numbers are read by a small automaton over word classes whose transition table is built once.
+ * The state the automaton stops in also tells whether the number could still grow ("sixty" may
+ * become "sixty five"), which is what decides if a partial recognition result can be trusted.
+ */
+public final class SpeedCommandParser {
+
+    /** The smallest limit that is accepted. */
+    public static final int MIN_LIMIT = 5;
+
+    /** The largest limit that is accepted. */
+    public static final int MAX_LIMIT = 300;
+
+    /** The value of a command that clears the limit. */
+    public static final int NO_LIMIT = 0;
+
+    /** The unit of a command that did not name one. */
+    public static final int UNIT_UNSPECIFIED = -1;
+
+    /*
+     * Word classes.
+     */
+    private static final int OTHER = 0;
+    private static final int ONES = 1;
+    private static final int TEEN = 2;
+    private static final int TENS = 3;
+    private static final int HUNDRED = 4;
+    private static final int AND = 5;
+    private static final int ARTICLE = 6;
+    private static final int DIGITS = 7;
+    private static final int UNIT = 8;
+    private static final int CLEAR = 9;
+    private static final int OH = 10;
+    private static final int CLASS_COUNT = 11;
+
+    /** The word classes that can make up part of a number. */
+    private static final boolean[] NUMBER_CLASS = {
+        false, true, true, true, true, false, false, true, false, false, true
+    };
+
+    /*
+     * Automaton states. Every state but START, ARTICLE_SEEN, HUNDRED_AND and ONE_OH accepts.
+     */
+    private static final int REJECT = -1;
+    private static final int START = 0;
+    private static final int ARTICLE_SEEN = 1;
+    private static final int ONE_DIGIT = 2;
+    private static final int TENS_SEEN = 3;
+    private static final int DONE = 4;
+    private static final int HUNDRED_SEEN = 5;
+    private static final int HUNDRED_AND = 6;
+    private static final int HUNDRED_TENS = 7;
+    private static final int HUNDRED_DONE = 8;
+    private static final int ONE_OH = 9;
+    private static final int STATE_COUNT = 10;
+
+    private static final boolean[] ACCEPTING = {
+        false, false, true, true, true, true, false, true, true, false
+    };
+
+    /** States after which another number word could still extend the number. */
+    private static final boolean[] EXTENDABLE = {
+        true, true, true, true, false, true, true, true, false, true
+    };
+
+    private static final int[][] TRANSITIONS = new int[STATE_COUNT][CLASS_COUNT];
+
+    /** Each known word, encoded as {@code class << 16 | value}. */
+    private static final Map<String, Integer> WORDS = new HashMap<String, Integer>();
+
+    static {
+        for (int[] row : TRANSITIONS) {
+            Arrays.fill(row, REJECT);
+        }
+        TRANSITIONS[START][ONES] = ONE_DIGIT;
+        TRANSITIONS[START][TEEN] = DONE;
+        TRANSITIONS[START][TENS] = TENS_SEEN;
+        TRANSITIONS[START][ARTICLE] = ARTICLE_SEEN;
+        TRANSITIONS[START][DIGITS] = DONE;
+        TRANSITIONS[START][HUNDRED] = HUNDRED_SEEN;
+        TRANSITIONS[ARTICLE_SEEN][HUNDRED] = HUNDRED_SEEN;
+        TRANSITIONS[ONE_DIGIT][HUNDRED] = HUNDRED_SEEN;
+        // "One twenty" and "one fifteen" are said for 120 and 115.
+        TRANSITIONS[ONE_DIGIT][TEEN] = HUNDRED_DONE;
+        TRANSITIONS[ONE_DIGIT][TENS] = HUNDRED_TENS;
+        // "One oh five" is said for 105.
+        TRANSITIONS[ONE_DIGIT][OH] = ONE_OH;
+        TRANSITIONS[ONE_OH][ONES] = HUNDRED_DONE;
+        TRANSITIONS[TENS_SEEN][ONES] = DONE;
+        TRANSITIONS[HUNDRED_SEEN][AND] = HUNDRED_AND;
+        TRANSITIONS[HUNDRED_SEEN][ONES] = HUNDRED_DONE;
+        TRANSITIONS[HUNDRED_SEEN][TEEN] = HUNDRED_DONE;
+        TRANSITIONS[HUNDRED_SEEN][TENS] = HUNDRED_TENS;
+        TRANSITIONS[HUNDRED_AND][ONES] = HUNDRED_DONE;
+        TRANSITIONS[HUNDRED_AND][TEEN] = HUNDRED_DONE;
+        TRANSITIONS[HUNDRED_AND][TENS] = HUNDRED_TENS;
+        TRANSITIONS[HUNDRED_TENS][ONES] = HUNDRED_DONE;
+
+        String[] ones = { "one", "two", "three", "four", "five", "six", "seven", "eight", "nine" };
+        for (int i = 0; i < ones.length; i++) {
+            word(ones[i], ONES, i + 1);
+        }
+        String[] teens = { "ten", "eleven", "twelve", "thirteen", "fourteen", "fifteen", "sixteen",
+                "seventeen", "eighteen", "nineteen" };
+        for (int i = 0; i < teens.length; i++) {
+            word(teens[i], TEEN, i + 10);
+        }
+        String[] tens = { "twenty", "thirty", "forty", "fifty", "sixty", "seventy", "eighty",
+                "ninety" };
+        for (int i = 0; i < tens.length; i++) {
+            word(tens[i], TENS, 10 * (i + 2));
+        }
+        word("fourty", TENS, 40);
+        word("hundred", HUNDRED, 100);
+        word("and", AND, 0);
+        word("a", ARTICLE, 1);
+        word("an", ARTICLE, 1);
+        word("oh", OH, 0);
+        word("o", OH, 0);
+
+        for (String unit : new String[] { "mph", "mile", "miles", "mi" }) {
+            word(unit, UNIT, SpeedView.MPH);
+        }
+        for (String unit : new String[] { "kph", "kmh", "kmph", "km", "k", "kilometer",
+                "kilometers", "kilometre", "kilometres" }) {
+            word(unit, UNIT, SpeedView.KMH);
+        }
+        for (String clear : new String[] { "off", "none", "clear", "zero" }) {
+            word(clear, CLEAR, NO_LIMIT);
+        }
+    }
+
+    private static void word(String word, int wordClass, int value) {
+        WORDS.put(word, wordClass << 16 | value);
+    }
+
+    /**
+     * A parsed command.
+     */
+    public static final class SpeedCommand {
+        /** The limit, or {@link SpeedCommandParser#NO_LIMIT} to clear it. */
+        public final int value;
+
+        /** The unit named with the limit, or {@link SpeedCommandParser#UNIT_UNSPECIFIED}. */
+        public final int uom;
+
+        /**
+         * Whether the number is known to be complete: it is followed by another word, or more
+         * number words could not extend it.
+         */
+        public final boolean complete;
+
+        SpeedCommand(int value, int uom, boolean complete) {
+            this.value = value;
+            this.uom = uom;
+            this.complete = complete;
+        }
+
+        /**
+         * Returns true if {@code other} sets the same limit in the same unit.
+         */
+        public boolean sameAs(SpeedCommand other) {
+            return other != null && other.value == value && other.uom == uom;
+        }
+    }
+
+    private SpeedCommandParser() {
+    }
+
+    /**
+     * Parses the first hypothesis of an n-best list that holds a valid command.
+     *
+     * @return the command, or {@code null} if no hypothesis holds one
+     */
+    public static SpeedCommand parseBest(List<String> hypotheses) {
+        if (hypotheses != null) {
+            for (String hypothesis : hypotheses) {
+                SpeedCommand command = parse(hypothesis);
+                if (command != null) {
+                    return command;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parses the first valid limit in {@code text}.
+     *
+     * @return the command, or {@code null} if the text holds none
+     */
+    public static SpeedCommand parse(String text) {
+        if (text == null) {
+            return null;
+        }
+
+        List<String> tokens = tokenize(text);
+        int size = tokens.size();
+        int[] classes = new int[size];
+        int[] values = new int[size];
+        boolean clear = false;
+        for (int i = 0; i < size; i++) {
+            classify(tokens.get(i), i, classes, values);
+            clear |= classes[i] == CLEAR;
+        }
+
+        int start = 0;
+        while (start < size) {
+            // Run the automaton as far as it goes, remembering the last accepting position.
+            int state = START;
+            int value = 0;
+            int end = -1;
+            int endValue = 0;
+            int rejectedAt = -1;
+            for (int i = start; i < size; i++) {
+                int next = TRANSITIONS[state][classes[i]];
+                if (next == REJECT) {
+                    rejectedAt = i;
+                    break;
+                }
+                value = apply(state, value, classes[i], values[i]);
+                state = next;
+                if (ACCEPTING[state]) {
+                    end = i;
+                    endValue = value;
+                }
+            }
+
+            if (rejectedAt > start && state == ARTICLE_SEEN) {
+                // "A" followed by something other than "hundred", as in "set a 65 mph limit".
+                start = rejectedAt;
+                continue;
+            }
+            if (rejectedAt > start && NUMBER_CLASS[classes[start]]
+                    && NUMBER_CLASS[classes[rejectedAt]]) {
+                // A number the automaton cannot read, such as "1 20". Its tail must not be taken
+                // as the limit, so the whole run of number words is skipped.
+                start = rejectedAt;
+                while (start < size && NUMBER_CLASS[classes[start]]) {
+                    start++;
+                }
+                continue;
+            }
+
+            if (end >= 0 && endValue >= MIN_LIMIT && endValue <= MAX_LIMIT) {
+                int uom = end + 1 < size && classes[end + 1] == UNIT
+                        ? values[end + 1] : UNIT_UNSPECIFIED;
+                // A number that ran into the end of the text may still grow, even past a word such
+                // as the "and" of "a hundred and".
+                boolean complete = rejectedAt >= 0 || !EXTENDABLE[state];
+                return new SpeedCommand(endValue, uom, complete);
+            }
+            start = Math.max(start, end) + 1;
+        }
+
+        return clear ? new SpeedCommand(NO_LIMIT, UNIT_UNSPECIFIED, true) : null;
+    }
+
+    private static int apply(int state, int value, int wordClass, int wordValue) {
+        if (state == ONE_DIGIT && (wordClass == TEEN || wordClass == TENS)) {
+            return value * 100 + wordValue;
+        }
+        if (state == ONE_OH) {
+            return value * 100 + wordValue;
+        }
+        switch (wordClass) {
+        case HUNDRED:
+            // A bare "hundred" stands for one hundred.
+            return state == START ? 100 : value * 100;
+        case ARTICLE:
+        case DIGITS:
+            return wordValue;
+        case AND:
+        case OH:
+            return value;
+        default:
+            return value + wordValue;
+        }
+    }
+
+    private static void classify(String token, int index, int[] classes, int[] values) {
+        if (Character.isDigit(token.charAt(0))) {
+            // Longer numbers can never be a valid limit.
+            classes[index] = token.length() <= 4 ? DIGITS : OTHER;
+            values[index] = token.length() <= 4 ? Integer.parseInt(token) : 0;
+            return;
+        }
+
+        Integer word = WORDS.get(token);
+        if (word == null) {
+            classes[index] = OTHER;
+            values[index] = 0;
+        } else {
+            classes[index] = word >> 16;
+            values[index] = word & 0xFFFF;
+        }
+    }
+
+    /**
+     * Splits text into lower case words and digit runs. Dots and slashes inside a word are
+     * dropped so that "km/h" and "m.p.h." read as "kmh" and "mph".
+     */
+    private static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<String>();
+        String lower = text.toLowerCase(Locale.US);
+        StringBuilder token = new StringBuilder();
+        boolean digits = false;
+
+        for (int i = 0; i < lower.length(); i++) {
+            char c = lower.charAt(i);
+            boolean letter = Character.isLetter(c);
+            boolean digit = Character.isDigit(c);
+
+            if ((c == '/' || c == '.' || c == '\'') && token.length() > 0 && !digits) {
+                continue;
+            }
+            if (token.length() > 0 && (!(letter || digit) || digit != digits)) {
+                tokens.add(token.toString());
+                token.setLength(0);
+            }
+            if (letter || digit) {
+                token.append(c);
+                digits = digit;
+            }
+        }
+        if (token.length() > 0) {
+            tokens.add(token.toString());
+        }
+        return tokens;
+    }
+}